@@ -52,6 +52,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
+import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import de.fuberlin.dessert.activity.SetupActivity;
@@ -66,7 +67,11 @@ import de.fuberlin.dessert.model.manage.ManageConfiguration;
 import de.fuberlin.dessert.tasks.FileTasks;
 import de.fuberlin.dessert.tasks.NativeTasks;
 import de.fuberlin.dessert.tasks.XMLTasks;
+import de.fuberlin.dessert.telnet.TelnetProxy;
 import de.fuberlin.dessert.telnet.TelnetScheduler;
+import de.fuberlin.dessert.telnet.TelnetScheduler.Engine;
+import de.fuberlin.dessert.telnet.TelnetScheduler.Priority;
+import de.fuberlin.dessert.telnet.TelnetScheduler.RejectionPolicy;
 
 /**
  * This is the global application class. It serves as a central location to
@@ -118,6 +123,8 @@ public class DessertApplication extends Application {
     private static final String REPO_INDEX_FILENAME = "index.xml";
     private static final String TEMP_CONFIG_FILENAME = "dessert.config";
     private static final String TEMP_PID_FILENAME = "dessert.pid";
+    private static final String TRANSCRIPT_FILENAME = "transcript.log";
+    private static final String CAPTURE_FILENAME = "capture.log";
 
     private static final String OPT_DAEMON_RUNNING_BOOLEAN = "running.daemon.state";
     private static final String OPT_DAEMON_ID_STRING = "running.daemon.state.id";
@@ -125,6 +132,9 @@ public class DessertApplication extends Application {
     private static final String OPT_DAEMON_PORT_INTEGER = "running.daemon.state.port";
 
     private static final int MAX_DAEMON_START_WAIT_TIME = 2500;
+    private static final int MAX_TRANSCRIPT_SIZE = 1024 * 1024;
+    private static final int MAX_CAPTURE_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_QUEUED_JOBS = 64;
 
     /** reference to the one and only running instance of the application */
     public static DessertApplication instance;
@@ -141,6 +151,7 @@ public class DessertApplication extends Application {
     private RunningDaemonInfo runningDaemon;
 
     private ManageConfiguration runningDaemonManageConfig;
+    private TelnetProxy telnetProxy;
 
     private final List<DaemonStartStopEventListener> daemonEventListeners;
 
@@ -280,6 +291,33 @@ public class DessertApplication extends Application {
         return runningDaemon;
     }
 
+    /**
+     * Returns the port of the local telnet proxy that lets an external telnet
+     * client share the CLI of the running daemon with the
+     * {@link #telnetScheduler}. The proxy is started on first use and stopped
+     * with the daemon.
+     * 
+     * @return the port of the proxy or -1 if no daemon is running or the
+     *         proxy could not be started
+     */
+    public synchronized int getTelnetProxyPort() {
+        if (runningDaemon == null) {
+            return -1;
+        }
+
+        if (telnetProxy == null) {
+            TelnetProxy proxy = new TelnetProxy(DessertApplication.telnetScheduler, runningDaemon.getName());
+            try {
+                proxy.start(0);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not start the telnet proxy", e);
+                return -1;
+            }
+            telnetProxy = proxy;
+        }
+        return telnetProxy.getPort();
+    }
+
     /**
      * Checks if there is at least one installed daemon installed on the system.
      * 
@@ -350,7 +388,14 @@ public class DessertApplication extends Application {
         // set instance reference
         DessertApplication.instance = this;
         DessertApplication.taskExecutor = Executors.newSingleThreadExecutor();
-        DessertApplication.telnetScheduler = new TelnetScheduler();
+        SharedPreferences appPreferences = getApplicationPreferences();
+        Engine cliEngine = appPreferences.getBoolean(SetupActivity.KEY_CLI_SELECTOR, false) ? Engine.SELECTOR : Engine.BLOCKING;
+        int cliSessions = Utils.safelyParseInteger(appPreferences.getString(SetupActivity.KEY_CLI_SESSIONS, "2"), 2);
+        DessertApplication.telnetScheduler = TelnetScheduler.createScheduler(cliEngine, cliSessions);
+        // stale polls are worthless; everything else is enqueued by the UI thread and must not wait
+        DessertApplication.telnetScheduler.setQueueCapacity(Priority.DEFAULT, MAX_QUEUED_JOBS, RejectionPolicy.DROP_NEW, 0);
+        DessertApplication.telnetScheduler.setQueueCapacity(Priority.LOW, MAX_QUEUED_JOBS, RejectionPolicy.DROP_OLDEST, 0);
+        DessertApplication.telnetScheduler.setQueueCapacity(Priority.LOWEST, MAX_QUEUED_JOBS, RejectionPolicy.DROP_OLDEST, 0);
         DessertApplication.telnetScheduler.startScheduler();
         DessertApplication.defaultDaemonIcon = getResources().getDrawable(R.drawable.daemon_icon);
 
@@ -583,7 +628,9 @@ public class DessertApplication extends Application {
         runningDaemon = new RunningDaemonInfo(daemon, pid, cliPort);
         saveRunningDaemonState();
 
-        // re-configure telnet scheduler
+        // re-configure telnet scheduler; the sessions are warmed up in the mode the manage entries need
+        applySchedulerPreferences();
+        DessertApplication.telnetScheduler.setWarmMode(getManageForRunningDaemon().getMostUsedMode());
         DessertApplication.telnetScheduler.setConnectionDetails(runningDaemon.getCLIPort());
 
         // start pid watchdog        
@@ -628,6 +675,49 @@ public class DessertApplication extends Application {
         daemonEventListeners.remove(listener);
     }
 
+    /**
+     * Applies the CLI related global preferences to the telnet scheduler
+     */
+    private void applySchedulerPreferences() {
+        SharedPreferences appPreferences = getApplicationPreferences();
+        DessertApplication.telnetScheduler.setPipelined(appPreferences.getBoolean(SetupActivity.KEY_CLI_PIPELINING, false));
+        DessertApplication.telnetScheduler.setCommandTimeout(1000 * Utils.safelyParseInteger(appPreferences.getString(
+                SetupActivity.KEY_CLI_COMMAND_TIMEOUT, "10"), 10));
+        DessertApplication.telnetScheduler.setJobTimeout(1000 * Utils.safelyParseInteger(appPreferences.getString(
+                SetupActivity.KEY_CLI_JOB_TIMEOUT, "60"), 60));
+        DessertApplication.telnetScheduler.setMaxQueueWait(1000 * Utils.safelyParseInteger(appPreferences.getString(
+                SetupActivity.KEY_CLI_MAX_QUEUE_WAIT, "30"), 30));
+        DessertApplication.telnetScheduler.setKeepAliveInterval(1000 * Utils.safelyParseInteger(appPreferences.getString(
+                SetupActivity.KEY_CLI_KEEP_ALIVE, "60"), 60));
+
+        // record the CLI traffic of the running daemon next to the saved command results
+        File transcriptFile = null;
+        if (appPreferences.getBoolean(SetupActivity.KEY_CLI_TRANSCRIPT, false)) {
+            transcriptFile = getRunningDaemonLogFile(TRANSCRIPT_FILENAME);
+        }
+        DessertApplication.telnetScheduler.setTranscriptFile(transcriptFile, MAX_TRANSCRIPT_SIZE);
+
+        // the capture is started before the sessions connect so it holds their greetings
+        File captureFile = null;
+        if (appPreferences.getBoolean(SetupActivity.KEY_CLI_CAPTURE, false)) {
+            captureFile = getRunningDaemonLogFile(CAPTURE_FILENAME);
+        }
+        DessertApplication.telnetScheduler.setCaptureFile(captureFile, MAX_CAPTURE_SIZE);
+    }
+
+    /**
+     * @return the file with the given name in the directory of the running
+     *         daemon on the SD card or <code>null</code> if there is no SD
+     *         card or no running daemon
+     */
+    private File getRunningDaemonLogFile(String filename) {
+        if (runningDaemon == null || !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        return new File(Environment.getExternalStorageDirectory(), "dessert/" + runningDaemon.getDaemonID() + "/"
+                + filename);
+    }
+
     /**
      * Reads the state of the running daemon (if any) as it was saved when the
      * application was last running
@@ -641,6 +731,8 @@ public class DessertApplication extends Application {
             InstalledDaemonInfo daemon = getInstalledDaemon(daemonID);
             if (daemon != null && NativeTasks.isProcessRunning(pid, null)) {
                 runningDaemon = new RunningDaemonInfo(daemon, pid, port);
+                applySchedulerPreferences();
+                DessertApplication.telnetScheduler.setWarmMode(getManageForRunningDaemon().getMostUsedMode());
                 DessertApplication.telnetScheduler.setConnectionDetails(runningDaemon.getCLIPort());
                 new Thread(new PIDWatchdog(pid)).start();
             }
@@ -701,7 +793,13 @@ public class DessertApplication extends Application {
      * signal any listener about the event
      */
     private synchronized void setRunningDaemonStopped() {
+        if (telnetProxy != null) {
+            telnetProxy.close();
+            telnetProxy = null;
+        }
         DessertApplication.telnetScheduler.resetScheduler();
+        DessertApplication.telnetScheduler.setTranscriptFile(null, 0);
+        DessertApplication.telnetScheduler.setCaptureFile(null, 0);
         runningDaemon = null;
         runningDaemonManageConfig = null;
         saveRunningDaemonState();
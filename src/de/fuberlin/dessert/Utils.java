@@ -23,7 +23,9 @@
 package de.fuberlin.dessert;
 
 import java.io.Closeable;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Map;
 
 import android.util.Log;
 
@@ -48,6 +50,80 @@ public class Utils {
         return str == null || str.length() == 0;
     }
 
+    /**
+     * Replaces the variables in the given <code>command</code> by their
+     * values. A variable is written as <code>%NAME%</code> and its name is
+     * case insensitive; <code>%%</code> inside a name is a literal percent
+     * sign. Variables without a value are left untouched.
+     * 
+     * @param command the command line with variables
+     * @param optionsMap the values by their upper case variable names
+     * @return the command line with the variables replaced
+     */
+    public static String replaceVariables(String command, Map<String, String> optionsMap) {
+        StringBuilder result = new StringBuilder(command.length());
+
+        StringBuilder variableName = new StringBuilder(64);
+        boolean readingVariable = false;
+        boolean gotEscape = false;
+        for (char chr : command.toCharArray()) {
+            if (readingVariable) {
+                // either we find the end marker which might be just an escape or we append the variableName
+                if (chr == '%') {
+                    // if we already found an escape this is a literal % otherwise this is the first one
+                    if (gotEscape) {
+                        variableName.append(chr);
+                        gotEscape = false;
+                    } else {
+                        gotEscape = true;
+                    }
+                } else {
+                    // if we already found an escape then it was the end otherwise this is just part of the variable name
+                    if (gotEscape) {
+                        readingVariable = false;
+                        gotEscape = false;
+                        // write var and push last character
+                        String varName = variableName.toString().toUpperCase();
+                        variableName.setLength(0);
+
+                        // get from map or use fallback and don't replace
+                        String value = optionsMap.get(varName);
+                        if (value == null) {
+                            value = "%" + varName + "%";
+                        }
+
+                        result.append(value);
+                        result.append(chr); // need to write the latest character too
+                    } else {
+                        variableName.append(chr);
+                    }
+                }
+            } else {
+                // either we find the start of a variable or just push through
+                if (chr == '%') {
+                    readingVariable = true;
+                } else {
+                    result.append(chr);
+                }
+            }
+        }
+
+        // in case of the last character
+        if (readingVariable && gotEscape) {
+            // write var and push last character
+            String varName = variableName.toString().toUpperCase();
+
+            // get from map or use fallback and don't replace
+            String value = optionsMap.get(varName);
+            if (value == null) {
+                value = "%" + varName + "%";
+            }
+            result.append(value);
+        }
+
+        return result.toString();
+    }
+
     /**
      * Safely closes the given <code>closable</code> object. Swallows any
      * exception that might be thrown while closing.
@@ -64,6 +140,22 @@ public class Utils {
         }
     }
 
+    /**
+     * Safely closes the given <code>closable</code> Object. Swallows any
+     * exception that might be thrown while closing.
+     * 
+     * @param closable may be null
+     */
+    public static void safelyClose(ServerSocket closable) {
+        try {
+            if (closable != null) {
+                closable.close();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Could not safely close this resource: " + closable, e);
+        }
+    }
+
     /**
      * Safely closes the given <code>closable</code> Object. Swallows any
      * exception that might be thrown while closing.
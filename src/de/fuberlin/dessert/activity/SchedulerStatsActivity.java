@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.activity;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.TextView;
+import de.fuberlin.dessert.DessertApplication;
+import de.fuberlin.dessert.R;
+import de.fuberlin.dessert.event.SchedulerStatsEventListener;
+import de.fuberlin.dessert.telnet.TelnetSchedulerStats;
+import de.fuberlin.dessert.telnet.TimeHistogram;
+import de.fuberlin.dessert.telnet.TelnetScheduler.Priority;
+
+/**
+ * Activity to show the metrics of the telnet scheduler. The values are
+ * updated every second while the activity is visible.
+ */
+public class SchedulerStatsActivity extends Activity implements SchedulerStatsEventListener {
+
+    private TextView textView;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.scheduler_stats);
+        textView = (TextView) findViewById(R.id.Text);
+    }
+
+    @Override
+    public void onStatsUpdated(TelnetSchedulerStats stats) {
+        final String text = format(stats);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                textView.setText(text);
+            }
+        });
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // unregister stats listener
+        DessertApplication.telnetScheduler.unregisterStatsListener(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        // register stats listener; gets called right away
+        DessertApplication.telnetScheduler.registerStatsListener(this);
+    }
+
+    private static String format(TelnetSchedulerStats stats) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Queue depth and times in ms\n");
+        sb.append(String.format("%-8s %5s %5s %11s %11s\n", "", "queue", "rej", "wait p50/99", "exec p50/99"));
+        for (Priority priority : Priority.values()) {
+            sb.append(String.format("%-8s %5d %5d %11s %11s\n",
+                    priority,
+                    stats.getQueueDepth(priority),
+                    stats.getRejectedJobs(priority),
+                    formatPercentiles(stats.getWaitTimeHistogram(priority)),
+                    formatPercentiles(stats.getExecutionTimeHistogram(priority))));
+        }
+        sb.append('\n');
+
+        sb.append(String.format("Commands:      %d (%.1f/s)\n", stats.getCommandsSent(), stats.getCommandsPerSecond()));
+        sb.append(String.format("Mode switches: %d (%d saved)\n", stats.getModeSwitches(), stats.getModeSwitchesSaved()));
+        sb.append(String.format("Bytes read:    %d\n", stats.getBytesRead()));
+        sb.append(String.format("Bytes written: %d\n", stats.getBytesWritten()));
+        sb.append(String.format("Reconnects:    %d\n", stats.getReconnects()));
+        sb.append(String.format("Cache:         %d hits, %d misses\n", stats.getCacheHits(), stats.getCacheMisses()));
+        sb.append(String.format("Coalesced:     %d\n", stats.getCoalescedJobs()));
+
+        return sb.toString();
+    }
+
+    private static String formatPercentiles(TimeHistogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return "-";
+        }
+        return histogram.getPercentile(50) + "/" + histogram.getPercentile(99);
+    }
+}
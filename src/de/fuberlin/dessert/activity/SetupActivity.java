@@ -66,6 +66,24 @@ public class SetupActivity extends PreferenceActivity {
      * running daemon
      */
     public static final String KEY_CLI_PORT = "cliport";
+    /** key to the preference to pipeline the commands on the cli interface */
+    public static final String KEY_CLI_PIPELINING = "clipipelining";
+    /** key to the preference of the number of parallel cli sessions */
+    public static final String KEY_CLI_SESSIONS = "clisessions";
+    /** key to the preference to drive all cli sessions from a single thread */
+    public static final String KEY_CLI_SELECTOR = "cliselector";
+    /** key to the preference of the timeout of a single cli command */
+    public static final String KEY_CLI_COMMAND_TIMEOUT = "clicommandtimeout";
+    /** key to the preference of the timeout of a sequence of cli commands */
+    public static final String KEY_CLI_JOB_TIMEOUT = "clijobtimeout";
+    /** key to the preference of the time a cli command may wait to be sent */
+    public static final String KEY_CLI_MAX_QUEUE_WAIT = "climaxqueuewait";
+    /** key to the preference of the keep-alive interval of idle cli sessions */
+    public static final String KEY_CLI_KEEP_ALIVE = "clikeepalive";
+    /** key to the preference to record a transcript of the cli traffic */
+    public static final String KEY_CLI_TRANSCRIPT = "clitranscript";
+    /** key to the preference to capture the raw cli traffic for the replay server */
+    public static final String KEY_CLI_CAPTURE = "clicapture";
     /** key to the preference of the mesh interface */
     public static final String KEY_MESH_IF = "meshif";
     /** key to the preference of the system interface */
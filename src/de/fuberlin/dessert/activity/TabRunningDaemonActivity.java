@@ -24,9 +24,13 @@ package de.fuberlin.dessert.activity;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -63,6 +67,7 @@ import de.fuberlin.dessert.dialog.AboutDialog;
 import de.fuberlin.dessert.event.CommandResultEventListener;
 import de.fuberlin.dessert.event.DaemonStartStopEventListener;
 import de.fuberlin.dessert.event.DataChangedEventListener;
+import de.fuberlin.dessert.event.PropertyTransactionEventListener;
 import de.fuberlin.dessert.model.daemon.RunningDaemonInfo;
 import de.fuberlin.dessert.model.manage.CommandLine;
 import de.fuberlin.dessert.model.manage.CommandOption;
@@ -70,19 +75,26 @@ import de.fuberlin.dessert.model.manage.ManageEntry;
 import de.fuberlin.dessert.model.manage.ManageEntry.ManageEntryType;
 import de.fuberlin.dessert.model.manage.ManageEntryCommand;
 import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+import de.fuberlin.dessert.model.manage.PropertyProfile;
 import de.fuberlin.dessert.tasks.FileTasks;
 import de.fuberlin.dessert.tasks.NativeTasks;
 import de.fuberlin.dessert.telnet.TelnetCommandMode;
+import de.fuberlin.dessert.telnet.TelnetJob;
+import de.fuberlin.dessert.telnet.TelnetJobHandle;
 import de.fuberlin.dessert.telnet.TelnetScheduler.Priority;
+import de.fuberlin.dessert.telnet.jobs.BatchPropertyTelnetJob;
 import de.fuberlin.dessert.telnet.jobs.CommandTelnetJob;
+import de.fuberlin.dessert.telnet.jobs.PropertyPoller;
+import de.fuberlin.dessert.telnet.jobs.ProfileTelnetJob;
 import de.fuberlin.dessert.telnet.jobs.PropertyTelnetJob;
+import de.fuberlin.dessert.telnet.jobs.TransactionalPropertyTelnetJob;
 
 /**
  * Activity to show the management entries as defined in the XML file of the
  * running daemon.
  */
 public class TabRunningDaemonActivity extends ListActivity implements DaemonStartStopEventListener, DataChangedEventListener,
-        CommandResultEventListener {
+        CommandResultEventListener, PropertyTransactionEventListener {
 
     private final class ResultDialog extends Dialog {
 
@@ -180,6 +192,9 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
     private static final String LOG_TAG = "DESSERT -> TabRunningDaemonActivity";
 
     private static final boolean USE_PROGRESS_BAR = false;
+
+    /** file extension of the saved property profiles */
+    private static final String PROFILE_EXTENSION = ".profile";
     private volatile ProgressDialog progressDialog;
 
     private final TelnetCommandMode[] customCommandModes = {
@@ -190,6 +205,8 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
     private String lastCustomCommand = "";
     private int lastCustomCommandModeIndex = 0;
 
+    private PropertyPoller propertyPoller;
+
     @Override
     public void onAborted() {
         // stop progress bar and inform user
@@ -198,11 +215,16 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
             progressDialog = null;
         }
 
-        new AlertDialog.Builder(this)
-                .setMessage(R.string.command_aborted)
-                .setNegativeButton(R.string.ok, null)
-                .create()
-                .show();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                new AlertDialog.Builder(TabRunningDaemonActivity.this)
+                        .setMessage(R.string.command_aborted)
+                        .setNegativeButton(R.string.ok, null)
+                        .create()
+                        .show();
+            }
+        });
     }
 
     @Override
@@ -247,6 +269,8 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
         listView.addHeaderView(headerView, null, false);
         setListAdapter(new ManageConfigurationListAdapter(TabRunningDaemonActivity.this));
 
+        propertyPoller = new PropertyPoller(DessertApplication.telnetScheduler, TabRunningDaemonActivity.this);
+
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
@@ -325,14 +349,19 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                 // set adapter values 
                 adapter.setValues(DessertApplication.instance.getManageForRunningDaemon());
 
-                // queue property updates
-                for (int i = 0; i < adapter.getCount(); i++) {
-                    ManageEntry entry = adapter.getItem(i);
-                    if (entry.getType() == ManageEntryType.PROPERTY_GETTER_ONLY
-                            || entry.getType() == ManageEntryType.PROPERTY_GETTER_SETTER) {
-                        handlePropertyClick((ManageEntryProperty) entry);
-                    }
+                // query all properties with a single job; the list is updated once it is done
+                List<ManageEntryProperty> properties = getPropertyEntries();
+                for (ManageEntryProperty entry : properties) {
+                    entry.setQuerying(true);
                 }
+                if (!properties.isEmpty()) {
+                    onDataChanged();
+                    DessertApplication.telnetScheduler.enqueueJob(new BatchPropertyTelnetJob(properties,
+                            TabRunningDaemonActivity.this));
+                }
+
+                // keep them up to date while shown
+                propertyPoller.setProperties(properties);
             }
         });
     }
@@ -346,6 +375,7 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                 headerView.findViewById(R.id.NotRunningLayout).setVisibility(View.VISIBLE);
                 headerView.findViewById(R.id.RunningLayout).setVisibility(View.GONE);
                 getAdapter().clear();
+                propertyPoller.clear();
             }
         });
     }
@@ -368,11 +398,16 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
             progressDialog = null;
         }
 
-        new AlertDialog.Builder(this)
-                .setMessage(R.string.command_error)
-                .setNegativeButton(R.string.ok, null)
-                .create()
-                .show();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                new AlertDialog.Builder(TabRunningDaemonActivity.this)
+                        .setMessage(R.string.command_error)
+                        .setNegativeButton(R.string.ok, null)
+                        .create()
+                        .show();
+            }
+        });
     }
 
     @Override
@@ -398,14 +433,31 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
             supRetVal = true;
             break;
         }
+        case R.id.SaveProfile: {
+            handleSaveProfileClick();
+
+            supRetVal = true;
+            break;
+        }
+        case R.id.ApplyProfile: {
+            handleApplyProfileClick();
+
+            supRetVal = true;
+            break;
+        }
         case R.id.Telnet: {
-            // make sure telnet connection is not active
-            DessertApplication.telnetScheduler.disconnect();
+            // connect through the proxy so the telnet client shares the sessions of the scheduler
+            int proxyPort = DessertApplication.instance.getTelnetProxyPort();
+            if (proxyPort == -1) {
+                Toast.makeText(TabRunningDaemonActivity.this, R.string.telnet_proxy_error, Toast.LENGTH_LONG).show();
+                supRetVal = true;
+                break;
+            }
 
             // call telnet activity
             RunningDaemonInfo daemonInfo = DessertApplication.instance.getRunningDaemon();
             StringBuilder sb = new StringBuilder();
-            sb.append("telnet://localhost:").append(daemonInfo.getCLIPort()).append("/#").append(daemonInfo.getName());
+            sb.append("telnet://localhost:").append(proxyPort).append("/#").append(daemonInfo.getName());
             startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(sb.toString())));
 
             supRetVal = true;
@@ -431,6 +483,11 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
             supRetVal = true;
             break;
         }
+        case R.id.SchedulerStats: {
+            startActivity(new Intent(TabRunningDaemonActivity.this, SchedulerStatsActivity.class));
+            supRetVal = true;
+            break;
+        }
         case R.id.Preferences: {
             startActivity(new Intent(TabRunningDaemonActivity.this, SetupActivity.class));
             supRetVal = true;
@@ -458,10 +515,111 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
         return result;
     }
 
+    @Override
+    public void onTransactionApplied(ManageEntryProperty entry, long applyTime) {
+        // nothing to do, the value is updated by the job
+    }
+
+    @Override
+    public void onTransactionFailed(final ManageEntryProperty entry, final boolean isRolledBack, long applyTime,
+            long rollbackTime) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                String text = getString(isRolledBack ? R.string.property_rolled_back : R.string.property_not_set,
+                        entry.getDescription());
+                Toast.makeText(TabRunningDaemonActivity.this, text, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     private ManageConfigurationListAdapter getAdapter() {
         return (ManageConfigurationListAdapter) getListAdapter();
     }
 
+    /**
+     * @return all properties of the running daemon in the order they are
+     *         shown
+     */
+    private List<ManageEntryProperty> getPropertyEntries() {
+        ManageConfigurationListAdapter adapter = getAdapter();
+        List<ManageEntryProperty> result = new ArrayList<ManageEntryProperty>();
+        for (int i = 0; i < adapter.getCount(); i++) {
+            ManageEntry entry = adapter.getItem(i);
+            if (entry.getType() == ManageEntryType.PROPERTY_GETTER_ONLY
+                    || entry.getType() == ManageEntryType.PROPERTY_GETTER_SETTER) {
+                result.add((ManageEntryProperty) entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lets the user pick a profile from the sdcard root directory and sets
+     * the properties whose values differ from the profile with a single job.
+     */
+    private void handleApplyProfileClick() {
+        // Don't show a dialog if the SD card is completely absent.
+        final String state = Environment.getExternalStorageState();
+        if (!Environment.MEDIA_MOUNTED_READ_ONLY.equals(state) && !Environment.MEDIA_MOUNTED.equals(state)) {
+            new AlertDialog.Builder(this)
+                    .setMessage(R.string.no_sdcard_installed)
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .create()
+                    .show();
+            return;
+        }
+
+        // build list of all profiles in sdcard root
+        List<String> names = new ArrayList<String>();
+        File[] files = Environment.getExternalStorageDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() || !file.getName().endsWith(PROFILE_EXTENSION)) {
+                    continue;
+                }
+                names.add(file.getName());
+            }
+        }
+        Collections.sort(names);
+
+        final String[] namesList = names.toArray(new String[names.size()]);
+
+        // prompt user to select any profile from the sdcard root
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.select_profile_title)
+                .setItems(namesList, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface view, int position) {
+                        File sourceFile = new File(Environment.getExternalStorageDirectory(), namesList[position]);
+                        Properties profile = FileTasks.readPropertiesFile(sourceFile);
+                        if (profile == null) {
+                            Toast.makeText(TabRunningDaemonActivity.this, R.string.profile_read_error, Toast.LENGTH_LONG).show();
+                            return;
+                        }
+
+                        // only send the setters of the properties that differ from their last known value
+                        Map<ManageEntryProperty, Map<String, String>> changes = PropertyProfile.getChanges(getPropertyEntries(), profile);
+                        if (changes.isEmpty()) {
+                            Toast.makeText(TabRunningDaemonActivity.this, R.string.profile_unchanged, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+
+                        for (ManageEntryProperty entry : changes.keySet()) {
+                            entry.setQuerying(true);
+                        }
+                        onDataChanged();
+                        DessertApplication.telnetScheduler.enqueueJob(new ProfileTelnetJob(changes, TabRunningDaemonActivity.this));
+
+                        String text = getString(R.string.profile_applying, changes.size());
+                        Toast.makeText(TabRunningDaemonActivity.this, text, Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create()
+                .show();
+    }
+
     private void handleCommandClick(final ManageEntryCommand commandEntry) {
         // create dialog
         final Dialog dialog = new Dialog(this);
@@ -494,12 +652,12 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                 // build job
                 CommandTelnetJob job = new CommandTelnetJob(TabRunningDaemonActivity.this);
                 for (CommandLine command : commandEntry.getCommands()) {
-                    String commandString = prepareCommandString(command.getCommandLine(), optionsMap);
+                    String commandString = Utils.replaceVariables(command.getCommandLine(), optionsMap);
                     job.addCommand(commandString, command.getModes());
                 }
 
                 // queue job
-                DessertApplication.telnetScheduler.enqueueJob(job);
+                final TelnetJobHandle jobHandle = DessertApplication.telnetScheduler.enqueueJob(job);
 
                 // dialog is done
                 dialog.dismiss();
@@ -513,8 +671,8 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                                     new ProgressDialog.OnCancelListener() {
                                         @Override
                                         public void onCancel(DialogInterface dlg) {
-                                            // we cut the connection here
-                                            DessertApplication.telnetScheduler.disconnect();
+                                            // stop the job only; the session stays connected
+                                            jobHandle.cancel();
                                         }
                                     });
                 }
@@ -593,7 +751,7 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                 lastCustomCommandModeIndex = selectedModeIndex[0]; // remember last command mode
 
                 // queue job
-                DessertApplication.telnetScheduler.enqueueJob(job);
+                final TelnetJobHandle jobHandle = DessertApplication.telnetScheduler.enqueueJob(job);
 
                 // dialog is done
                 dialog.dismiss();
@@ -608,8 +766,8 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                                     new ProgressDialog.OnCancelListener() {
                                         @Override
                                         public void onCancel(DialogInterface dlg) {
-                                            // we cut the connection here
-                                            DessertApplication.telnetScheduler.disconnect();
+                                            // stop the job only; the session stays connected
+                                            jobHandle.cancel();
                                         }
                                     });
                 }
@@ -662,12 +820,19 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
                     optionsMap.put(option.getName().toUpperCase(), option.getValue());
                 }
 
-                // build job
-                PropertyTelnetJob job = new PropertyTelnetJob(propertyEntry, TabRunningDaemonActivity.this,
-                        propertyEntry.getGetterCommand().getCommandLine(), propertyEntry.getGetterCommand().getModes());
-                for (CommandLine command : propertyEntry.getSetterCommands()) {
-                    String commandString = prepareCommandString(command.getCommandLine(), optionsMap);
-                    job.addSetterCommand(commandString, command.getModes());
+                // build job; several setter commands are applied as a whole or not at all
+                TelnetJob job;
+                if (propertyEntry.getSetterCommands().length > 1) {
+                    job = new TransactionalPropertyTelnetJob(propertyEntry, optionsMap, TabRunningDaemonActivity.this,
+                            TabRunningDaemonActivity.this);
+                } else {
+                    PropertyTelnetJob propertyJob = new PropertyTelnetJob(propertyEntry, TabRunningDaemonActivity.this,
+                            propertyEntry.getGetterCommand().getCommandLine(), propertyEntry.getGetterCommand().getModes());
+                    for (CommandLine command : propertyEntry.getSetterCommands()) {
+                        String commandString = Utils.replaceVariables(command.getCommandLine(), optionsMap);
+                        propertyJob.addSetterCommand(commandString, command.getModes());
+                    }
+                    job = propertyJob;
                 }
 
                 // set querying state
@@ -688,68 +853,71 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
         dialog.show();
     }
 
-    private String prepareCommandString(String command, Map<String, String> optionsMap) {
-        StringBuilder result = new StringBuilder(command.length());
-
-        StringBuilder variableName = new StringBuilder(64);
-        boolean readingVariable = false;
-        boolean gotEscape = false;
-        for (char chr : command.toCharArray()) {
-            if (readingVariable) {
-                // either we find the end marker which might be just an escape or we append the variableName
-                if (chr == '%') {
-                    // if we already found an escape this is a literal % otherwise this is the first one
-                    if (gotEscape) {
-                        variableName.append(chr);
-                        gotEscape = false;
-                    } else {
-                        gotEscape = true;
-                    }
-                } else {
-                    // if we already found an escape then it was the end otherwise this is just part of the variable name
-                    if (gotEscape) {
-                        readingVariable = false;
-                        gotEscape = false;
-                        // write var and push last character
-                        String varName = variableName.toString().toUpperCase();
-                        variableName.setLength(0);
-
-                        // get from map or use fallback and don't replace
-                        String value = optionsMap.get(varName);
-                        if (value == null) {
-                            value = "%" + varName + "%";
-                        }
+    /**
+     * Saves the last known values of all properties as a profile to the
+     * sdcard root directory.
+     */
+    private void handleSaveProfileClick() {
+        final Dialog dialog = new Dialog(this);
+        dialog.setTitle(R.string.save_profile_title);
+        dialog.setCancelable(true);
+        dialog.setOwnerActivity(this);
+        dialog.setContentView(R.layout.save_options_file);
 
-                        result.append(value);
-                        result.append(chr); // need to write the latest character too
-                    } else {
-                        variableName.append(chr);
-                    }
+        LinearLayout contentLayout = (LinearLayout) dialog.findViewById(R.id.ContentLayout);
+        contentLayout.setMinimumWidth(1000);
+
+        final String daemonName = DessertApplication.instance.getRunningDaemon().getName();
+        final EditText editText = (EditText) dialog.findViewById(R.id.TargetFileText);
+        editText.setText(daemonName);
+
+        Button saveButton = (Button) dialog.findViewById(R.id.SaveButton);
+        saveButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                String filename = editText.getText().toString();
+                if (!filename.endsWith(PROFILE_EXTENSION)) {
+                    filename += PROFILE_EXTENSION;
                 }
-            } else {
-                // either we find the start of a variable or just push through
-                if (chr == '%') {
-                    readingVariable = true;
+
+                final File targetFile = new File(Environment.getExternalStorageDirectory(), filename);
+                final Properties profile = PropertyProfile.createProfile(getPropertyEntries());
+
+                if (targetFile.exists()) {
+                    // ask the user if he want's to overwrite the file
+                    AlertDialog.Builder alertbox = new AlertDialog.Builder(TabRunningDaemonActivity.this);
+                    alertbox.setMessage(R.string.ask_overwrite_file);
+
+                    // set yes to overwrite the profile
+                    alertbox.setPositiveButton(R.string.yes, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dlg, int which) {
+                            targetFile.delete();
+                            FileTasks.writePropertiesFile(targetFile, profile, daemonName);
+                        }
+                    });
+
+                    // set no to do nothing
+                    alertbox.setNegativeButton(R.string.no, null);
+
+                    // display dialog
+                    alertbox.show();
                 } else {
-                    result.append(chr);
+                    FileTasks.writePropertiesFile(targetFile, profile, daemonName);
                 }
+
+                dialog.dismiss();
             }
-        }
+        });
 
-        // in case of the last character
-        if (readingVariable && gotEscape) {
-            // write var and push last character
-            String varName = variableName.toString().toUpperCase();
+        dialog.show();
+    }
 
-            // get from map or use fallback and don't replace
-            String value = optionsMap.get(varName);
-            if (value == null) {
-                value = "%" + varName + "%";
-            }
-            result.append(value);
-        }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
 
-        return result.toString();
+        propertyPoller.shutdown();
     }
 
     @Override
@@ -758,6 +926,9 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
 
         // unregister change listener
         DessertApplication.instance.unregisterRunningDaemonsChangedListener(this);
+
+        // no need to poll values nobody looks at
+        propertyPoller.pause();
     }
 
     @Override
@@ -772,5 +943,7 @@ public class TabRunningDaemonActivity extends ListActivity implements DaemonStar
         } else {
             onDaemonStarted(DessertApplication.instance.getRunningDaemon());
         }
+
+        propertyPoller.resume();
     }
 }
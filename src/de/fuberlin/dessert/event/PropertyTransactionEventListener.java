@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.event;
+
+import java.util.EventListener;
+
+import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+
+public interface PropertyTransactionEventListener extends EventListener {
+
+    /**
+     * @param entry the property whose setter commands were applied
+     * @param applyTime time in milliseconds the setter commands took
+     */
+    public void onTransactionApplied(ManageEntryProperty entry, long applyTime);
+
+    /**
+     * @param entry the property whose setter commands failed
+     * @param isRolledBack <code>true</code> if the previous values were
+     *            restored
+     * @param applyTime time in milliseconds the setter commands took; -1 if
+     *            they were not all sent
+     * @param rollbackTime time in milliseconds restoring the previous values
+     *            took; -1 if they were not restored
+     */
+    public void onTransactionFailed(ManageEntryProperty entry, boolean isRolledBack, long applyTime,
+            long rollbackTime);
+}
@@ -25,6 +25,8 @@ package de.fuberlin.dessert.model.manage;
 import java.util.ArrayList;
 import java.util.List;
 
+import de.fuberlin.dessert.telnet.TelnetCommandMode;
+
 public class ManageConfiguration {
 
     private final List<ManageEntry> manageEntries;
@@ -48,4 +50,29 @@ public class ManageConfiguration {
     public ManageEntry getEntry(int pos) {
         return manageEntries.get(pos);
     }
+
+    /**
+     * Finds the mode most of the getter commands of the properties can be run
+     * in. These commands are run as soon as the configuration is shown.
+     * 
+     * @return the most used mode or <code>null</code> if there is no property
+     */
+    public TelnetCommandMode getMostUsedMode() {
+        int[] counts = new int[TelnetCommandMode.values().length];
+        for (ManageEntry entry : manageEntries) {
+            if (entry instanceof ManageEntryProperty) {
+                for (TelnetCommandMode mode : ((ManageEntryProperty) entry).getGetterCommand().getModes()) {
+                    counts[mode.ordinal()]++;
+                }
+            }
+        }
+
+        TelnetCommandMode result = null;
+        for (TelnetCommandMode mode : TelnetCommandMode.values()) {
+            if (counts[mode.ordinal()] > 0 && (result == null || counts[mode.ordinal()] > counts[result.ordinal()])) {
+                result = mode;
+            }
+        }
+        return result;
+    }
 }
@@ -22,6 +22,9 @@
  ******************************************************************************/
 package de.fuberlin.dessert.model.manage;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -34,22 +37,108 @@ public class ManageEntryProperty extends ManageEntry {
     protected final CommandLine getterCommand;
     protected final CommandLine[] setterCommands;
     protected final CommandOption[] setterCommandOptions;
-    protected String currentValue;
+    protected final int timeToLive;
+    protected final int pollInterval;
+    protected final PropertyFormat format;
+    protected PropertyValue currentValue;
     protected boolean isQuerying;
 
     public ManageEntryProperty(String description, CommandLine getterCommand, CommandLine[] setterCommands,
             CommandOption[] setterCommandOptions) {
+        this(description, getterCommand, setterCommands, setterCommandOptions, 0, 0, PropertyFormat.TEXT);
+    }
+
+    /**
+     * @param timeToLive time in seconds the value returned by the getter
+     *            command may be cached; 0 if it must be queried every time
+     * @param pollInterval time in seconds between two queries of the value
+     *            while the daemon is shown; 0 if it is not polled
+     * @param format format used to parse the output of the getter command
+     */
+    public ManageEntryProperty(String description, CommandLine getterCommand, CommandLine[] setterCommands,
+            CommandOption[] setterCommandOptions, int timeToLive, int pollInterval, PropertyFormat format) {
         super(description);
 
         this.getterCommand = getterCommand;
         this.setterCommands = setterCommands;
         this.setterCommandOptions = setterCommandOptions;
+        this.timeToLive = timeToLive;
+        this.pollInterval = pollInterval;
+        this.format = format;
+    }
+
+    /**
+     * @return format used to parse the output of the getter command
+     */
+    public PropertyFormat getFormat() {
+        return format;
     }
 
     public CommandLine getGetterCommand() {
         return getterCommand;
     }
 
+    /**
+     * Tells the values of the setter options from a value returned by the
+     * getter command. The options take the values with their names from a
+     * {@link PropertyFormat#KEY_VALUE} value, a single option may also take
+     * the only value of a {@link PropertyFormat#KEY_VALUE} value, the whole
+     * value or the number of a {@link PropertyFormat#NUMBER} value.
+     * 
+     * @param value a value returned by the getter command; may be
+     *            <code>null</code>
+     * @return the values by the upper case option names or <code>null</code>
+     *         if not all of them could be told
+     */
+    public Map<String, String> getOptionValues(PropertyValue value) {
+        if (value == null) {
+            return null;
+        }
+
+        Map<String, String> result = new HashMap<String, String>();
+        if (value.getFormat() == PropertyFormat.KEY_VALUE) {
+            for (CommandOption option : setterCommandOptions) {
+                String optionValue = null;
+                for (int i = 0; i < value.getRowCount() && optionValue == null; i++) {
+                    if (value.getCell(i, 0).equalsIgnoreCase(option.getName())) {
+                        optionValue = value.getCell(i, 1);
+                    }
+                }
+                if (optionValue == null && setterCommandOptions.length == 1 && value.getRowCount() == 1) {
+                    optionValue = value.getCell(0, 1);
+                }
+                if (optionValue == null) {
+                    return null;
+                }
+                result.put(option.getName().toUpperCase(), optionValue);
+            }
+        } else if (setterCommandOptions.length == 1) {
+            String text = value.getText().trim();
+            if (value.getFormat() == PropertyFormat.NUMBER && value.getUnit() != null) {
+                text = text.substring(0, text.indexOf(' '));
+            }
+            if (text.length() == 0 || text.indexOf('\n') != -1) {
+                return null;
+            }
+            result.put(setterCommandOptions[0].getName().toUpperCase(), text);
+        } else if (setterCommandOptions.length != 0) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * @return time in seconds between two queries of the value while the
+     *         daemon is shown; 0 if it is not polled
+     */
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    public PropertyValue getPropertyValue() {
+        return currentValue;
+    }
+
     public CommandOption[] getSetterCommandOptions() {
         return setterCommandOptions;
     }
@@ -58,6 +147,14 @@ public class ManageEntryProperty extends ManageEntry {
         return setterCommands;
     }
 
+    /**
+     * @return time in seconds the value returned by the getter command may be
+     *         cached; 0 if it must be queried every time
+     */
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
     @Override
     public ManageEntryType getType() {
         ManageEntryType result = null;
@@ -106,7 +203,7 @@ public class ManageEntryProperty extends ManageEntry {
         if (currentValue == null) {
             value = layoutInflater.getContext().getString(R.string.value_unknown);
         } else {
-            value = currentValue;
+            value = currentValue.getText();
         }
 
         TextView valueView = (TextView) view.findViewById(R.id.ValueField);
@@ -115,7 +212,7 @@ public class ManageEntryProperty extends ManageEntry {
         return view;
     }
 
-    public void setPropertyValue(String currentValue) {
+    public void setPropertyValue(PropertyValue currentValue) {
         this.currentValue = currentValue;
     }
 
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.model.manage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+
+/**
+ * Parsers that turn the output lines of a getter command into a
+ * {@link PropertyValue}. The parser of a property is declared with the
+ * <code>parser</code> attribute in the manage file.
+ * <p>
+ * Parsing happens once in the thread receiving the output, so the UI only
+ * renders the prepared value.
+ */
+public enum PropertyFormat {
+    /**
+     * The output is shown as it is.
+     */
+    TEXT {
+        @Override
+        protected PropertyValue parseLines(String[] output, List<String> lines) {
+            return PropertyValue.createText(Utils.toString(output, true));
+        }
+    },
+
+    /**
+     * Every line holds a key and a value separated by a colon or an equals
+     * sign. Lines without one of those are split at the first white space.
+     */
+    KEY_VALUE {
+        @Override
+        protected PropertyValue parseLines(String[] output, List<String> lines) {
+            String[] cells = new String[lines.size() * 2];
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                Matcher matcher = KEY_VALUE_SEPARATOR.matcher(line);
+                boolean isFound = matcher.find();
+                if (!isFound) {
+                    matcher = COLUMN_SEPARATOR.matcher(line);
+                    isFound = matcher.find();
+                }
+                if (isFound) {
+                    cells[2 * i] = line.substring(0, matcher.start()).trim();
+                    cells[2 * i + 1] = line.substring(matcher.end()).trim();
+                } else {
+                    cells[2 * i] = line;
+                    cells[2 * i + 1] = "";
+                }
+            }
+            return PropertyValue.createCells(this, 2, cells);
+        }
+    },
+
+    /**
+     * The first line holds the column names, every other line a row of the
+     * table. Columns are separated by white space; the last column takes the
+     * rest of the line.
+     */
+    TABLE {
+        @Override
+        protected PropertyValue parseLines(String[] output, List<String> lines) {
+            String[] header = COLUMN_SEPARATOR.split(lines.get(0));
+            int columnCount = header.length;
+
+            String[] cells = new String[lines.size() * columnCount];
+            System.arraycopy(header, 0, cells, 0, columnCount);
+            for (int i = 1; i < lines.size(); i++) {
+                String[] row = COLUMN_SEPARATOR.split(lines.get(i), columnCount);
+                for (int j = 0; j < columnCount; j++) {
+                    cells[i * columnCount + j] = j < row.length ? row[j] : "";
+                }
+            }
+            return PropertyValue.createCells(this, columnCount, cells);
+        }
+    },
+
+    /**
+     * The first number in the output that is not part of a word or an
+     * address, optionally followed by its unit.
+     */
+    NUMBER {
+        @Override
+        protected PropertyValue parseLines(String[] output, List<String> lines) {
+            for (String line : lines) {
+                Matcher matcher = NUMBER_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    double number = Utils.safelyParseDouble(matcher.group(1), Double.NaN);
+                    return PropertyValue.createNumber(number, matcher.group(1), matcher.group(2));
+                }
+            }
+            // no number found, show the output instead
+            return TEXT.parseLines(output, lines);
+        }
+    };
+
+    private static final String LOG_TAG = "DESSERT -> PropertyFormat";
+
+    private static final Pattern KEY_VALUE_SEPARATOR = Pattern.compile("\\s*[:=]\\s*");
+    private static final Pattern COLUMN_SEPARATOR = Pattern.compile("\\s+");
+    private static final Pattern NUMBER_PATTERN = Pattern.compile(
+            "(?<![\\w.])([-+]?\\d+(?:\\.\\d+)?)(?!\\.?\\d)(?:\\s*([^\\s\\d.,;:]+))?");
+
+    /**
+     * Parses the output lines of a getter command. Empty lines are ignored.
+     * 
+     * @param lines output of the getter command; may be <code>null</code>
+     * @return the parsed value; an empty text if there is no output
+     */
+    public PropertyValue parse(String[] lines) {
+        if (lines == null || lines.length == 0) {
+            return PropertyValue.createText("");
+        }
+
+        List<String> trimmedLines = new ArrayList<String>(lines.length);
+        for (String line : lines) {
+            if (line != null && line.trim().length() != 0) {
+                trimmedLines.add(line.trim());
+            }
+        }
+
+        if (trimmedLines.isEmpty()) {
+            return TEXT.parseLines(lines, trimmedLines);
+        }
+        return parseLines(lines, trimmedLines);
+    }
+
+    /**
+     * @param output the output lines as received
+     * @param lines the trimmed, non empty output lines; contains at least one
+     *            line unless this is {@link #TEXT}
+     */
+    protected abstract PropertyValue parseLines(String[] output, List<String> lines);
+
+    /**
+     * @return the format named by <code>value</code> or {@link #TEXT} if the
+     *         value is empty or unknown
+     */
+    public static PropertyFormat parseString(String value) {
+        if (value == null || value.length() == 0) {
+            return TEXT;
+        }
+
+        try {
+            return PropertyFormat.valueOf(value);
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Unrecognized property format: " + value);
+        }
+
+        return TEXT;
+    }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.model.manage;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Converts between the runtime values of properties and a profile stored as
+ * {@link Properties}.
+ * <p>
+ * A profile holds the values of the setter options of each property. The key
+ * of a value is the description of the property and the upper case name of
+ * the option separated by a dot.
+ */
+public final class PropertyProfile {
+
+    private PropertyProfile() {
+        // only static methods
+    }
+
+    /**
+     * Creates a profile of the current values of the given properties. Only
+     * properties with setter options whose values can be told from the last
+     * value returned by the getter are stored.
+     * 
+     * @param entries the properties to store
+     * @return the profile
+     */
+    public static Properties createProfile(List<ManageEntryProperty> entries) {
+        Properties result = new Properties();
+        for (ManageEntryProperty entry : entries) {
+            if (entry.getSetterCommandOptions().length == 0) {
+                continue;
+            }
+
+            Map<String, String> values = entry.getOptionValues(entry.getPropertyValue());
+            if (values != null) {
+                for (CommandOption option : entry.getSetterCommandOptions()) {
+                    result.setProperty(getKey(entry, option), values.get(option.getName().toUpperCase()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the properties whose values in the <code>profile</code> differ
+     * from their last values returned by the getter. A property whose current
+     * values are not known is taken as changed. Properties without setter
+     * commands and properties the profile does not hold a value for every
+     * setter option of are skipped.
+     * 
+     * @param entries the properties to compare
+     * @param profile the profile to apply
+     * @return the new values of the setter options by their upper case names
+     *         for every changed property in the order of <code>entries</code>
+     */
+    public static Map<ManageEntryProperty, Map<String, String>> getChanges(List<ManageEntryProperty> entries,
+            Properties profile) {
+        Map<ManageEntryProperty, Map<String, String>> result = new LinkedHashMap<ManageEntryProperty, Map<String, String>>();
+        for (ManageEntryProperty entry : entries) {
+            CommandOption[] options = entry.getSetterCommandOptions();
+            if (options.length == 0 || entry.getSetterCommands().length == 0) {
+                continue;
+            }
+
+            Map<String, String> values = new HashMap<String, String>();
+            for (CommandOption option : options) {
+                String value = profile.getProperty(getKey(entry, option));
+                if (value == null) {
+                    break;
+                }
+                values.put(option.getName().toUpperCase(), value);
+            }
+            if (values.size() != options.length) {
+                continue;
+            }
+
+            if (!values.equals(entry.getOptionValues(entry.getPropertyValue()))) {
+                result.put(entry, values);
+            }
+        }
+        return result;
+    }
+
+    private static String getKey(ManageEntryProperty entry, CommandOption option) {
+        return entry.getDescription() + "." + option.getName().toUpperCase();
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.model.manage;
+
+/**
+ * Typed value of a property as produced by its {@link PropertyFormat}.
+ * <p>
+ * Instances are immutable. The text shown to the user is built once when the
+ * value is created, so rendering the value does not look at the output of the
+ * getter command again.
+ */
+public final class PropertyValue {
+
+    /**
+     * Value shown when the getter command failed.
+     */
+    public static final PropertyValue ERROR = createText("<error>");
+
+    private static final String COLUMN_GAP = "  ";
+
+    private final PropertyFormat format;
+    private final String text;
+    private final int columnCount;
+    private final String[] cells;
+    private final double number;
+    private final String unit;
+
+    private PropertyValue(PropertyFormat format, String text, int columnCount, String[] cells, double number,
+            String unit) {
+        this.format = format;
+        this.text = text;
+        this.columnCount = columnCount;
+        this.cells = cells;
+        this.number = number;
+        this.unit = unit;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PropertyValue)) {
+            return false;
+        }
+        PropertyValue other = (PropertyValue) obj;
+        return format == other.format && text.equals(other.text);
+    }
+
+    /**
+     * @return the cell in the given row and column of a {@link PropertyFormat#KEY_VALUE}
+     *         or {@link PropertyFormat#TABLE} value
+     * @throws IndexOutOfBoundsException if there is no such cell
+     */
+    public String getCell(int row, int column) {
+        if (column < 0 || column >= columnCount || row < 0 || row >= getRowCount()) {
+            throw new IndexOutOfBoundsException("row " + row + ", column " + column);
+        }
+        return cells[getHeaderRowCount() * columnCount + row * columnCount + column];
+    }
+
+    /**
+     * @return number of columns; 2 for a {@link PropertyFormat#KEY_VALUE}
+     *         value and 0 if the value has no cells
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @return name of the given column of a {@link PropertyFormat#TABLE} value
+     *         or <code>null</code> if the value has no column names
+     */
+    public String getColumnName(int column) {
+        if (format != PropertyFormat.TABLE || column < 0 || column >= columnCount) {
+            return null;
+        }
+        return cells[column];
+    }
+
+    /**
+     * @return the format of the value; {@link PropertyFormat#TEXT} if the
+     *         output did not match the declared format
+     */
+    public PropertyFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the number of a {@link PropertyFormat#NUMBER} value;
+     *         {@link Double#NaN} for any other format
+     */
+    public double getNumber() {
+        return number;
+    }
+
+    /**
+     * @return number of rows without the row of column names
+     */
+    public int getRowCount() {
+        return columnCount == 0 ? 0 : cells.length / columnCount - getHeaderRowCount();
+    }
+
+    /**
+     * @return text to show to the user
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return unit following the number of a {@link PropertyFormat#NUMBER}
+     *         value or <code>null</code> if there is none
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return the value of the first row with the given key of a
+     *         {@link PropertyFormat#KEY_VALUE} value or <code>null</code> if
+     *         there is no such key
+     */
+    public String getValue(String key) {
+        if (format != PropertyFormat.KEY_VALUE) {
+            return null;
+        }
+        for (int i = 0; i < cells.length; i += 2) {
+            if (cells[i].equals(key)) {
+                return cells[i + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * format.hashCode() + text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private int getHeaderRowCount() {
+        return format == PropertyFormat.TABLE ? 1 : 0;
+    }
+
+    /**
+     * Creates a value made of cells. The text lines up the columns.
+     * 
+     * @param format {@link PropertyFormat#KEY_VALUE} or
+     *            {@link PropertyFormat#TABLE}
+     * @param columnCount number of cells per row
+     * @param cells the cells row by row
+     */
+    static PropertyValue createCells(PropertyFormat format, int columnCount, String[] cells) {
+        int[] widths = new int[columnCount];
+        for (int i = 0; i < cells.length; i++) {
+            widths[i % columnCount] = Math.max(widths[i % columnCount], cells[i].length());
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < cells.length; i++) {
+            int column = i % columnCount;
+            if (column == 0 && i != 0) {
+                text.append('\n');
+            }
+            text.append(cells[i]);
+
+            // pad to the column width unless the rest of the row is empty
+            if (!isRestEmpty(cells, i + 1, columnCount - column - 1)) {
+                for (int j = cells[i].length(); j < widths[column]; j++) {
+                    text.append(' ');
+                }
+                text.append(COLUMN_GAP);
+            }
+        }
+
+        return new PropertyValue(format, text.toString(), columnCount, cells, Double.NaN, null);
+    }
+
+    /**
+     * @param number the parsed number
+     * @param numberText the number as it was received
+     * @param unit unit following the number; may be <code>null</code>
+     */
+    static PropertyValue createNumber(double number, String numberText, String unit) {
+        String text = unit == null ? numberText : numberText + " " + unit;
+        return new PropertyValue(PropertyFormat.NUMBER, text, 0, null, number, unit);
+    }
+
+    /**
+     * @param text the text to show; may be <code>null</code> for an empty
+     *            text
+     */
+    static PropertyValue createText(String text) {
+        return new PropertyValue(PropertyFormat.TEXT, text == null ? "" : text, 0, null, Double.NaN, null);
+    }
+
+    private static boolean isRestEmpty(String[] cells, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            if (cells[i].length() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -62,6 +62,7 @@ import de.fuberlin.dessert.model.manage.ManageConfiguration;
 import de.fuberlin.dessert.model.manage.ManageEntryCommand;
 import de.fuberlin.dessert.model.manage.ManageEntryProperty;
 import de.fuberlin.dessert.model.manage.ManageEntrySpacer;
+import de.fuberlin.dessert.model.manage.PropertyFormat;
 import de.fuberlin.dessert.telnet.TelnetCommandMode;
 
 /**
@@ -110,6 +111,9 @@ public class XMLTasks {
     private static final String LIBRARY_VERSION_ATTRIBUTE = "libraryVersion";
     private static final String PATH_ATTRIBUTE = "path";
     private static final String MODE_ATTRIBUTE = "mode";
+    private static final String TTL_ATTRIBUTE = "ttl";
+    private static final String POLL_INTERVAL_ATTRIBUTE = "pollInterval";
+    private static final String PARSER_ATTRIBUTE = "parser";
 
     /**
      * Reads the configuration XML file from the given <code>configFile</code>.
@@ -252,18 +256,27 @@ public class XMLTasks {
             Element propertyElement = root.getChild(PROPERTY_ELEMENT);
             propertyElement.setElementListener(new ElementListener() {
                 private String description;
+                private int timeToLive;
+                private int pollInterval;
+                private PropertyFormat format;
 
                 @Override
                 public void end() {
                     result.addEntry(new ManageEntryProperty(description,
                             getterCommandLineHolder[0],
                             commandLines.toArray(new CommandLine[commandLines.size()]),
-                            commandOptions.toArray(new CommandOption[commandOptions.size()])));
+                            commandOptions.toArray(new CommandOption[commandOptions.size()]),
+                            timeToLive,
+                            pollInterval,
+                            format));
                 }
 
                 @Override
                 public void start(Attributes attributes) {
                     description = attributes.getValue(DESCRIPTION_ATTRIBUTE);
+                    timeToLive = Math.max(0, Utils.safelyParseInteger(attributes.getValue(TTL_ATTRIBUTE), 0));
+                    pollInterval = Math.max(0, Utils.safelyParseInteger(attributes.getValue(POLL_INTERVAL_ATTRIBUTE), 0));
+                    format = PropertyFormat.parseString(attributes.getValue(PARSER_ATTRIBUTE));
                     getterCommandLineHolder[0] = null;
                     commandLines.clear();
                     commandOptions.clear();
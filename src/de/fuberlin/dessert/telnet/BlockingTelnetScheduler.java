@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Engine of the {@link TelnetScheduler} that runs a worker thread with a
+ * blocking {@link TelnetConnection} per session.
+ */
+final class BlockingTelnetScheduler extends TelnetScheduler {
+
+    /**
+     * Thread to run the actual job execution logic on its own telnet session.
+     * Calls through to the outer class.
+     */
+    private final class WorkerThread extends Thread {
+
+        private final TelnetConnection connection = new TelnetConnection();
+        private final TelnetSession session = new TelnetSession(getResultCache(), getCounters(),
+                getTranscript(), getCapture());
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        public WorkerThread(int index) {
+            super("TelnetScheduler-WorkerThread-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (isRunning()) {
+                Thread.interrupted();
+
+                // a reset only interrupts the worker; the outdated connection is closed here
+                if (connection.isConnected() && session.getGeneration() != getConnectionGeneration()) {
+                    connection.close();
+                    session.close();
+                }
+
+                try {
+                    // wait or get next job
+                    JobWrapper wrapper = takeNextJob(this, connection.isConnected() ? session.getCurrentMode() : null,
+                            true);
+                    if (wrapper == null) {
+                        Log.w(LOG_TAG, "Queued job was null; skipping job");
+                        continue;
+                    }
+
+                    boolean connectionOK = false;
+                    boolean connectionLost = false;
+                    try {
+                        // check if connection needs to established
+                        connectionOK = ensureConnection(this, wrapper);
+
+                        // execute job
+                        if (connectionOK) {
+                            connectionLost = !executeJob(this, wrapper);
+                        }
+                    } finally {
+                        releaseJob(this, wrapper);
+                    }
+
+                    // a worker interrupted by a reset must not replay its job
+                    if (!connectionOK) {
+                        Log.w(LOG_TAG, "Problem creating connection; skipping job");
+                        retryOrFailJob(wrapper, false, !isInterrupted());
+                    } else if (connectionLost) {
+                        Log.w(LOG_TAG, "Lost connection while executing job");
+                        retryOrFailJob(wrapper, true, !isInterrupted());
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Got an exception in the worker thread loop", e);
+                }
+            }
+        }
+
+        /**
+         * Reads from the connection until the session got all outstanding
+         * prompts. Stops waiting if the worker is interrupted.
+         * 
+         * @throws InterruptedIOException if the worker was interrupted
+         */
+        private void readResponses() throws IOException {
+            while (session.isAwaitingPrompt()) {
+                if (isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for the prompt");
+                }
+
+                // a blocked read does not notice an interrupt; wake up now and then to check
+                long deadline = session.getDeadline();
+                long wakeUpTime = System.currentTimeMillis() + INTERRUPT_CHECK_INTERVAL;
+                try {
+                    connection.read(readBuffer, deadline == 0 || wakeUpTime < deadline ? wakeUpTime : deadline);
+                } catch (SocketTimeoutException e) {
+                    if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+                        throw e;
+                    }
+                    continue;
+                }
+                readBuffer.flip();
+                session.consume(readBuffer);
+                readBuffer.clear();
+            }
+        }
+    }
+
+    private static final String LOG_TAG = "DESSERT -> BlockingTelnetScheduler";
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /** time in milliseconds after which a blocked read checks whether the worker was interrupted */
+    private static final int INTERRUPT_CHECK_INTERVAL = 100;
+
+    private final WorkerThread[] workerThreads;
+
+    public BlockingTelnetScheduler(int sessions) {
+        super(sessions);
+        this.workerThreads = new WorkerThread[getSessionCount()];
+        for (int i = 0; i < workerThreads.length; i++) {
+            this.workerThreads[i] = new WorkerThread(i);
+            this.workerThreads[i].setDaemon(true);
+        }
+    }
+
+    @Override
+    void closeSessions() {
+        // stop worker threads; the workers fail their jobs and close their connections on their own, so the caller
+        // never waits for the socket I/O
+        for (WorkerThread workerThread : workerThreads) {
+            workerThread.interrupt();
+        }
+    }
+
+    @Override
+    Object[] getSessionOwners() {
+        return workerThreads.clone();
+    }
+
+    @Override
+    void startSessions() {
+        for (WorkerThread workerThread : workerThreads) {
+            workerThread.start();
+        }
+    }
+
+    private boolean ensureConnection(WorkerThread worker, JobWrapper wrapper) {
+        int currentGeneration = getConnectionGeneration();
+
+        // stop active connection if details are changed
+        if (worker.connection.isConnected() && worker.session.getGeneration() != currentGeneration) {
+            // disconnect here
+            worker.connection.close();
+        }
+
+        // start connection if none is running
+        if (!worker.connection.isConnected()) {
+            // back off after failed attempts; only retryable jobs wait for the next one
+            long delay = getReconnectDelay();
+            if (delay > 0) {
+                if (!isRetryable(wrapper)) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            int timeout = getCommandTimeout();
+            try {
+                worker.connection.connect(getPort(), timeout);
+                worker.session.open(currentGeneration, timeout);
+                worker.readResponses();
+                onConnectSucceeded();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while creating telnet connection", e);
+                worker.connection.close();
+                worker.session.close();
+                // a reset interrupted the greeting; the telnet server is not to blame
+                if (!worker.isInterrupted()) {
+                    onConnectFailed();
+                }
+            }
+        }
+
+        return worker.connection.isConnected();
+    }
+
+    /**
+     * Runs the given job on the session of the worker. Timeouts, protocol
+     * errors and exceptions thrown by the job fail the job right away.
+     * 
+     * @return <code>false</code> if the connection broke while the job was
+     *         running; the job was taken off the session without being failed
+     */
+    private boolean executeJob(WorkerThread worker, JobWrapper wrapper) {
+        TelnetJob job = wrapper.getJob();
+
+        try {
+            worker.session.startJob(job, wrapper.getHandle(), getPipelineDepth(), getCommandTimeout(),
+                    getJobTimeout());
+
+            ByteBuffer request;
+            while ((request = worker.session.nextRequest()) != null) {
+                worker.connection.write(request);
+                worker.readResponses();
+            }
+        } catch (SocketTimeoutException e) {
+            Log.w(LOG_TAG, "Timed out while executing job " + job);
+            worker.connection.close(); // the session may still send the rest of the output; start over with a new one
+            worker.session.close();
+        } catch (ProtocolException e) {
+            Log.e(LOG_TAG, "Error while executing job " + job, e);
+            worker.connection.close();
+            worker.session.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while executing job " + job, e);
+            boolean detached = worker.session.detachJob() != null;
+            worker.connection.close();
+            worker.session.close();
+            return !detached;
+        } catch (RuntimeException e) {
+            // the session must not keep a broken job; fail it and start over with a new connection
+            Log.e(LOG_TAG, "Caught exception while executing job " + job, e);
+            worker.connection.close();
+            worker.session.close();
+        }
+
+        return true;
+    }
+}
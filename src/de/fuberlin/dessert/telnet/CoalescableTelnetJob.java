@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+/**
+ * A {@link TelnetJob} that can be merged with other jobs doing the same
+ * thing.
+ * <p>
+ * If a job is enqueued while another job with an equal coalescing key is
+ * queued or running, the {@link TelnetScheduler} does not queue the new job.
+ * Instead it attaches the job to the one already there. The commands of the
+ * first job are executed once and every attached job gets the same callbacks
+ * with the same results.
+ * <p>
+ * Only jobs without side effects on the daemon should return a key, e.g. jobs
+ * that only query a value.
+ */
+public interface CoalescableTelnetJob extends TelnetJob {
+
+    /**
+     * @return the key identifying the commands of this job or
+     *         <code>null</code> if the job must not be merged
+     */
+    public Object getCoalescingKey();
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of {@link CoalescableTelnetJob} objects with the same coalescing
+ * key. The commands of the first job are executed and every callback is
+ * passed to all jobs of the group.
+ * <p>
+ * Jobs can join the group until the first result is delivered. After that a
+ * new job with the same key starts a new group. The group is replayed if the
+ * first job is.
+ * <p>
+ * Each job gets its own {@link TelnetJobHandle}. A cancelled job is aborted
+ * and gets no more callbacks while the group runs on for the others; the
+ * commands are still taken from the first job even if it was cancelled. The
+ * group itself is cancelled with its last job.
+ */
+final class CoalescedTelnetJob implements OrderedTelnetJob, PeekableTelnetJob, RetryableTelnetJob {
+
+    /**
+     * Handle of a single job of the group.
+     */
+    private final class Member implements TelnetJobHandle {
+        private final TelnetJob job;
+
+        // guarded by the monitor of the group
+        private boolean isDone = false;
+        private boolean isCancelled = false;
+
+        public Member(TelnetJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public boolean cancel() {
+            return cancelMember(this);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (CoalescedTelnetJob.this) {
+                return isCancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (CoalescedTelnetJob.this) {
+                return isDone;
+            }
+        }
+    }
+
+    private final TelnetScheduler scheduler;
+    private final Object coalescingKey;
+    private final TelnetJob leader;
+    private final List<Member> members = new ArrayList<Member>(); // the leader comes first
+    private boolean isStarted = false;
+    private boolean isClosed = false;
+
+    /** the queued wrapper of this group; guarded by the monitor of the group */
+    TelnetScheduler.JobWrapper wrapper;
+
+    public CoalescedTelnetJob(TelnetScheduler scheduler, Object coalescingKey, TelnetJob leader) {
+        this.scheduler = scheduler;
+        this.coalescingKey = coalescingKey;
+        this.leader = leader;
+        this.members.add(new Member(leader));
+    }
+
+    public Object getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    /**
+     * @return the handle of the first job of the group
+     */
+    public synchronized TelnetJobHandle getLeaderHandle() {
+        return members.get(0);
+    }
+
+    @Override
+    public Object getOrderingKey() {
+        if (leader instanceof OrderedTelnetJob) {
+            return ((OrderedTelnetJob) leader).getOrderingKey();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasMoreCommands() {
+        return leader.hasMoreCommands();
+    }
+
+    @Override
+    public boolean isRetryable() {
+        return leader instanceof RetryableTelnetJob && ((RetryableTelnetJob) leader).isRetryable();
+    }
+
+    /**
+     * Attaches the given <code>job</code> to this group. If the group is
+     * already started the onStart handler of the job is called right away.
+     * 
+     * @param job the job to attach
+     * @return the handle of the job or <code>null</code> if the group does not
+     *         take any more jobs
+     */
+    public TelnetJobHandle join(TelnetJob job) {
+        Member member;
+        boolean signalStart;
+        synchronized (this) {
+            if (isClosed) {
+                return null;
+            }
+            member = new Member(job);
+            members.add(member);
+            signalStart = isStarted;
+        }
+
+        if (signalStart) {
+            TelnetScheduler.signalJobStart(job);
+        }
+        return member;
+    }
+
+    @Override
+    public TelnetCommand nextCommand() {
+        return leader.nextCommand();
+    }
+
+    @Override
+    public void onAborted() {
+        for (TelnetJob job : close(true)) {
+            TelnetScheduler.signalJobAborted(job);
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        for (TelnetJob job : close(true)) {
+            TelnetScheduler.signalJobCompleted(job);
+        }
+    }
+
+    @Override
+    public void onError() {
+        for (TelnetJob job : close(true)) {
+            TelnetScheduler.signalJobError(job);
+        }
+    }
+
+    @Override
+    public void onResult(String[] resultValue, TelnetCommand command) {
+        for (TelnetJob job : close(false)) {
+            TelnetScheduler.signalJobResult(job, resultValue, command);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        List<TelnetJob> jobs;
+        synchronized (this) {
+            isStarted = true;
+            jobs = getActiveJobs(false);
+        }
+
+        for (TelnetJob job : jobs) {
+            TelnetScheduler.signalJobStart(job);
+        }
+    }
+
+    @Override
+    public TelnetCommand peekCommand() {
+        if (leader instanceof PeekableTelnetJob) {
+            return ((PeekableTelnetJob) leader).peekCommand();
+        }
+        return null;
+    }
+
+    @Override
+    public void rewind() {
+        ((RetryableTelnetJob) leader).rewind();
+    }
+
+    /**
+     * Aborts a single job of the group. The group is cancelled as well if no
+     * other job is left.
+     */
+    private boolean cancelMember(Member member) {
+        boolean cancelGroup = true;
+        synchronized (this) {
+            if (member.isDone) {
+                return false;
+            }
+            member.isDone = true;
+            member.isCancelled = true;
+
+            for (Member other : members) {
+                if (!other.isDone) {
+                    cancelGroup = false;
+                    break;
+                }
+            }
+
+            // the monitor keeps the scheduler from moving the wrapper to another queue meanwhile
+            if (cancelGroup) {
+                wrapper.getHandle().cancel();
+            }
+        }
+
+        if (cancelGroup) {
+            close(true);
+        }
+        TelnetScheduler.signalJobAborted(member.job);
+        return true;
+    }
+
+    /**
+     * Closes the group for any further job.
+     * 
+     * @param finish <code>true</code> to mark the jobs as done
+     * @return the jobs that are not cancelled or done yet
+     */
+    private List<TelnetJob> close(boolean finish) {
+        boolean wasOpen;
+        List<TelnetJob> jobs;
+        synchronized (this) {
+            wasOpen = !isClosed;
+            isClosed = true;
+            jobs = getActiveJobs(finish);
+        }
+
+        if (wasOpen) {
+            scheduler.removeCoalescedJob(this);
+        }
+        return jobs;
+    }
+
+    /**
+     * Must be called while holding the monitor of the group.
+     * 
+     * @param finish <code>true</code> to mark the jobs as done
+     * @return the jobs that are not cancelled or done yet
+     */
+    private List<TelnetJob> getActiveJobs(boolean finish) {
+        List<TelnetJob> jobs = new ArrayList<TelnetJob>(members.size());
+        for (Member member : members) {
+            if (!member.isDone) {
+                jobs.add(member.job);
+                member.isDone = finish;
+            }
+        }
+        return jobs;
+    }
+}
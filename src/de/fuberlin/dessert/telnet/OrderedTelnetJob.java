@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+/**
+ * A {@link TelnetJob} that depends on the execution order of other jobs.
+ * <p>
+ * If the {@link TelnetScheduler} runs several sessions and session affinity is
+ * enabled (see {@link TelnetScheduler#setSessionAffinity(boolean)}) jobs with
+ * an equal ordering key are never executed at the same time on different
+ * sessions. Instead they are run one after the other in the order of the queue
+ * on the session that picked up the first of them.
+ * <p>
+ * A job that depends on several groups of jobs can return a
+ * {@link java.util.Collection} of keys. It is ordered with every job sharing
+ * any of these keys and only runs once none of them is bound to another
+ * session.
+ */
+public interface OrderedTelnetJob extends TelnetJob {
+
+    /**
+     * @return the key of the jobs this job must be ordered with, a collection
+     *         of such keys or <code>null</code> if the job does not depend on
+     *         any other job
+     */
+    public Object getOrderingKey();
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+/**
+ * A {@link TelnetJob} that allows a look at its next command before it is
+ * executed.
+ * <p>
+ * The {@link TelnetScheduler} uses the first command of a queued job to prefer
+ * jobs that can be run in the {@link TelnetCommandMode} a session is already
+ * in. This way it saves the commands needed to switch between the modes.
+ */
+public interface PeekableTelnetJob extends TelnetJob {
+
+    /**
+     * Returns the command the next call to {@link #nextCommand()} would return
+     * without removing it from the job.
+     * 
+     * @return the next command or <code>null</code> if it is not known yet
+     */
+    public TelnetCommand peekCommand();
+}
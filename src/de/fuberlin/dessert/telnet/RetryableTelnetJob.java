@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+/**
+ * A {@link TelnetJob} that may be run again if its session was lost, e.g.
+ * because the daemon was restarted and refused connections for a moment.
+ * <p>
+ * If the connection could not be opened or broke while the job was executed,
+ * the {@link TelnetScheduler} rewinds a retryable job and queues it again
+ * instead of calling its onAborted or onError handler. The onStart handler
+ * is called again when the job is started the next time. Jobs that are not
+ * retryable fail right away.
+ */
+public interface RetryableTelnetJob extends TelnetJob {
+
+    /**
+     * @return <code>true</code> if running the commands of this job again has
+     *         no side effects, e.g. it only queries values
+     */
+    public boolean isRetryable();
+
+    /**
+     * Rewinds the job so that {@link #nextCommand()} returns the first command
+     * again. Only called for a retryable job after it was started.
+     */
+    public void rewind();
+}
@@ -0,0 +1,429 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+
+/**
+ * Engine of the {@link TelnetScheduler} that drives all sessions from a single
+ * thread.
+ * <p>
+ * Every session uses a non-blocking {@link SocketChannel} with a direct read
+ * buffer. The selector thread assigns queued jobs to idle sessions, writes the
+ * requests of the {@link TelnetSession} and feeds it with the bytes read.
+ * Deadlines are checked between two selects, so no extra thread is needed for
+ * the timeouts either.
+ */
+final class SelectorTelnetScheduler extends TelnetScheduler {
+
+    /**
+     * A single session as driven by the selector thread.
+     */
+    private static final class Slot {
+        private final TelnetSession session;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private SocketChannel channel = null;
+        private SelectionKey key = null;
+        private ByteBuffer writeBuffer = null; // request that could not be written completely
+        private JobWrapper wrapper = null; // job assigned to this slot
+        private boolean connecting = false;
+        private boolean started = false; // job is started on the session
+        private long connectAt = 0; // point in time to open the connection for the assigned job; 0 if not waiting
+
+        public Slot(TelnetResultCache resultCache, TelnetCounters counters, TelnetTranscript transcript,
+                TelnetCapture capture) {
+            this.session = new TelnetSession(resultCache, counters, transcript, capture);
+        }
+    }
+
+    /**
+     * Thread to run the event loop of all sessions. Calls through to the outer
+     * class.
+     */
+    private final class SelectorThread extends Thread {
+
+        public SelectorThread() {
+            super("TelnetScheduler-SelectorThread");
+        }
+
+        @Override
+        public void run() {
+            while (isRunning()) {
+                try {
+                    runOnce();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Got an exception in the selector thread loop", e);
+                }
+            }
+
+            for (Slot slot : slots) {
+                closeSlot(slot, true, false);
+            }
+        }
+    }
+
+    private static final String LOG_TAG = "DESSERT -> SelectorTelnetScheduler";
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final Slot[] slots;
+    private final SelectorThread selectorThread = new SelectorThread();
+    private volatile Selector selector = null;
+    private volatile boolean closeRequested = false;
+
+    public SelectorTelnetScheduler(int sessions) {
+        super(sessions);
+        this.slots = new Slot[getSessionCount()];
+        for (int i = 0; i < slots.length; i++) {
+            this.slots[i] = new Slot(getResultCache(), getCounters(), getTranscript(), getCapture());
+        }
+        this.selectorThread.setDaemon(true);
+    }
+
+    @Override
+    void closeSessions() {
+        // the sessions belong to the selector thread; let it close them
+        closeRequested = true;
+        onQueueChanged();
+    }
+
+    @Override
+    void onQueueChanged() {
+        Selector currentSelector = selector;
+        if (currentSelector != null) {
+            currentSelector.wakeup();
+        }
+    }
+
+    @Override
+    Object[] getSessionOwners() {
+        return slots.clone();
+    }
+
+    @Override
+    void startSessions() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not open selector; no job will be executed", e);
+            return;
+        }
+        selectorThread.start();
+    }
+
+    /**
+     * Assigns a queued job to the given idle <code>slot</code> and opens the
+     * connection if needed.
+     */
+    private void assignJob(Slot slot) {
+        boolean isConnected = slot.channel != null && !slot.connecting;
+        JobWrapper wrapper = takeNextJob(slot, isConnected ? slot.session.getCurrentMode() : null, false);
+        if (wrapper == null) {
+            return;
+        }
+
+        // stop active connection if details are changed
+        if (slot.channel != null && slot.session.getGeneration() != getConnectionGeneration()) {
+            closeSlot(slot, true, false);
+        }
+        slot.wrapper = wrapper;
+
+        // start connection if none is running; the job is started after the greeting
+        if (slot.channel == null) {
+            // back off after failed attempts; only retryable jobs wait for the next one
+            long delay = getReconnectDelay();
+            if (delay == 0) {
+                connectSlot(slot);
+            } else if (isRetryable(wrapper)) {
+                slot.connectAt = System.currentTimeMillis() + delay;
+            } else {
+                Log.w(LOG_TAG, "Backing off from connecting; skipping job");
+                releaseJob(slot, wrapper);
+                slot.wrapper = null;
+                retryOrFailJob(wrapper, false, false);
+            }
+            return;
+        }
+
+        try {
+            startJob(slot);
+        } catch (ProtocolException e) {
+            Log.e(LOG_TAG, "Error while executing job " + wrapper.getJob(), e);
+            closeSlot(slot, true, false);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while executing job " + wrapper.getJob(), e);
+            closeSlot(slot, false, true);
+        } catch (RuntimeException e) {
+            // the session must not keep a broken job; fail it and start over with a new connection
+            Log.e(LOG_TAG, "Caught exception while executing job " + wrapper.getJob(), e);
+            closeSlot(slot, true, false);
+        }
+    }
+
+    /**
+     * Closes the connection of the given <code>slot</code>. A running job is
+     * replayed or failed as decided by
+     * {@link #retryOrFailJob(JobWrapper, boolean, boolean)}.
+     * 
+     * @param logout <code>true</code> to log out of the server before
+     * @param connectionLost <code>true</code> if the connection broke or
+     *            could not be opened
+     */
+    private void closeSlot(Slot slot, boolean logout, boolean connectionLost) {
+        boolean connectFailed = connectionLost && slot.wrapper != null && !slot.started && slot.channel != null;
+        TelnetJob detachedJob = slot.session.detachJob();
+
+        if (slot.channel != null) {
+            if (logout && !slot.connecting) {
+                try {
+                    slot.channel.write(TelnetSession.encode(TelnetSession.COMMAND_LOGOUT));
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Error while disconnecting from telnet server", e);
+                }
+            }
+
+            if (slot.key != null) {
+                slot.key.cancel();
+            }
+            Utils.safelyClose(slot.channel);
+        }
+
+        slot.channel = null;
+        slot.key = null;
+        slot.writeBuffer = null;
+        slot.connecting = false;
+        slot.connectAt = 0;
+        slot.readBuffer.clear();
+        slot.session.close();
+
+        if (connectFailed) {
+            onConnectFailed();
+        }
+
+        if (slot.wrapper != null) {
+            JobWrapper wrapper = slot.wrapper;
+            releaseJob(slot, wrapper);
+            slot.wrapper = null;
+            retryOrFailJob(wrapper, detachedJob != null, connectionLost);
+        }
+        slot.started = false;
+    }
+
+    /**
+     * Opens the connection for the job assigned to the given
+     * <code>slot</code>.
+     */
+    private void connectSlot(Slot slot) {
+        if (!openSlot(slot)) {
+            Log.w(LOG_TAG, "Problem creating connection; skipping job");
+            onConnectFailed();
+            JobWrapper wrapper = slot.wrapper;
+            releaseJob(slot, wrapper);
+            slot.wrapper = null;
+            retryOrFailJob(wrapper, false, true);
+        }
+    }
+
+    /**
+     * Takes the next request of the job running on the given
+     * <code>slot</code> and writes it. If the job is done the slot becomes
+     * idle again.
+     */
+    private void nextRequest(Slot slot) throws IOException {
+        ByteBuffer request = slot.session.nextRequest();
+        if (request == null) {
+            releaseJob(slot, slot.wrapper);
+            slot.wrapper = null;
+            slot.started = false;
+            return;
+        }
+
+        slot.channel.write(request);
+        if (request.hasRemaining()) {
+            slot.writeBuffer = request;
+            slot.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void onConnectable(Slot slot) throws IOException {
+        if (slot.channel.finishConnect()) {
+            slot.connecting = false;
+            slot.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onReadable(Slot slot) throws IOException {
+        int count = slot.channel.read(slot.readBuffer);
+        if (count == -1) {
+            throw new EOFException("Connection was closed by the telnet server");
+        }
+
+        slot.readBuffer.flip();
+        slot.session.consume(slot.readBuffer);
+        slot.readBuffer.clear();
+
+        if (slot.wrapper != null && !slot.session.isAwaitingPrompt()) {
+            if (slot.started) {
+                nextRequest(slot);
+            } else {
+                onConnectSucceeded();
+                startJob(slot);
+            }
+        }
+    }
+
+    private void onWritable(Slot slot) throws IOException {
+        slot.channel.write(slot.writeBuffer);
+        if (!slot.writeBuffer.hasRemaining()) {
+            slot.writeBuffer = null;
+            slot.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Opens a non-blocking connection for the given <code>slot</code>. The
+     * greeting of the server is awaited by the session.
+     */
+    private boolean openSlot(Slot slot) {
+        int timeout = getCommandTimeout();
+        try {
+            slot.channel = SocketChannel.open();
+            slot.channel.configureBlocking(false);
+            slot.session.open(getConnectionGeneration(), timeout);
+
+            if (slot.channel.connect(new InetSocketAddress("localhost", getPort()))) {
+                slot.key = slot.channel.register(selector, SelectionKey.OP_READ, slot);
+            } else {
+                slot.connecting = true;
+                slot.key = slot.channel.register(selector, SelectionKey.OP_CONNECT, slot);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while creating telnet connection", e);
+            Utils.safelyClose(slot.channel);
+            slot.channel = null;
+            slot.key = null;
+            slot.connecting = false;
+            slot.session.close();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs a single iteration of the event loop.
+     */
+    private void runOnce() throws IOException {
+        if (closeRequested) {
+            closeRequested = false;
+            for (Slot slot : slots) {
+                closeSlot(slot, true, false);
+            }
+        }
+
+        // 1. give a job to any idle session and open the connections that were backed off
+        for (Slot slot : slots) {
+            if (slot.wrapper == null) {
+                assignJob(slot);
+            } else if (slot.connectAt != 0 && slot.connectAt <= System.currentTimeMillis()) {
+                slot.connectAt = 0;
+                connectSlot(slot);
+            }
+        }
+
+        // 2. wait for the next event or the next deadline
+        long nextDeadline = 0;
+        for (Slot slot : slots) {
+            long deadline = slot.channel != null ? slot.session.getDeadline() : slot.connectAt;
+            if (deadline != 0 && (nextDeadline == 0 || deadline < nextDeadline)) {
+                nextDeadline = deadline;
+            }
+        }
+
+        if (nextDeadline == 0) {
+            selector.select();
+        } else {
+            selector.select(Math.max(1, nextDeadline - System.currentTimeMillis()));
+        }
+
+        // 3. handle the events
+        for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            Slot slot = (Slot) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    onConnectable(slot);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    onWritable(slot);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    onReadable(slot);
+                }
+            } catch (ProtocolException e) {
+                // the connection is fine but the session is confused; fail the job like the blocking engine does
+                Log.e(LOG_TAG, "Error while executing job " + (slot.wrapper != null ? slot.wrapper.getJob() : null), e);
+                closeSlot(slot, true, false);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while executing job " + (slot.wrapper != null ? slot.wrapper.getJob() : null), e);
+                closeSlot(slot, false, true);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Caught exception while executing job "
+                        + (slot.wrapper != null ? slot.wrapper.getJob() : null), e);
+                closeSlot(slot, true, false);
+            }
+        }
+
+        // 4. check the deadlines
+        long now = System.currentTimeMillis();
+        for (Slot slot : slots) {
+            long deadline = slot.channel != null ? slot.session.getDeadline() : 0;
+            if (deadline != 0 && deadline <= now) {
+                Log.w(LOG_TAG, "Timed out while executing job " + (slot.wrapper != null ? slot.wrapper.getJob() : null));
+                // the session may still send the rest of the output; start over with a new one
+                // a job that timed out before it was started never got the greeting, so it may be replayed
+                closeSlot(slot, true, !slot.started);
+            }
+        }
+    }
+
+    private void startJob(Slot slot) throws IOException {
+        slot.started = true;
+        slot.session.startJob(slot.wrapper.getJob(), slot.wrapper.getHandle(), getPipelineDepth(), getCommandTimeout(),
+                getJobTimeout());
+        nextRequest(slot);
+    }
+}
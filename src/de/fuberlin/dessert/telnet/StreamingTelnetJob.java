@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+/**
+ * A {@link TelnetJob} that receives the output of its commands line by line
+ * as it is read from the telnet server instead of as a whole.
+ * <p>
+ * For every command the lines are supplied by
+ * {@link #onLine(CharSequence, TelnetCommand)} before the result of the
+ * command is signaled by {@link #onResult(String[], TelnetCommand)}. As the
+ * lines were already supplied the result array passed to the latter is
+ * always empty. This way long outputs can be processed or written out
+ * progressively without ever holding the complete output in memory.
+ */
+public interface StreamingTelnetJob extends TelnetJob {
+
+    /**
+     * Callback method called by the telnet service for every line read as
+     * output of the given <code>command</code>.
+     * <p>
+     * The given <code>line</code> is only valid until this method returns;
+     * call {@link CharSequence#toString()} to keep it.
+     * 
+     * @param line the line as read from the telnet server without the line
+     *            ending
+     * @param command the command that caused this output
+     */
+    public void onLine(CharSequence line, TelnetCommand command);
+}
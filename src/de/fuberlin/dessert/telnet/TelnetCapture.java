@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+
+/**
+ * A capture of the raw bytes exchanged by all sessions of a
+ * {@link TelnetScheduler} with the CLI telnet interface. A capture can be
+ * replayed by the <code>ReplayServer</code> of the <code>tools</code> source
+ * tree to reproduce the behavior of a daemon without running it.
+ * <p>
+ * The capture is a text file with one event per line:
+ * 
+ * <pre>
+ * # dessert telnet capture
+ * &lt;time&gt; &lt;session&gt; open
+ * &lt;time&gt; &lt;session&gt; send &lt;bytes&gt;
+ * &lt;time&gt; &lt;session&gt; recv &lt;bytes&gt;
+ * &lt;time&gt; &lt;session&gt; close
+ * </pre>
+ * 
+ * The time is given in milliseconds since the capture was started. The bytes
+ * are written as they are except for the backslash and any byte that is not
+ * printable ASCII; these are escaped as <code>\\</code>, <code>\r</code>,
+ * <code>\n</code>, <code>\t</code> or <code>\xHH</code>. So CR LF line
+ * endings, bare CRs and telnet option bytes are replayed exactly as the daemon
+ * sent them.
+ * <p>
+ * Like the {@link TelnetTranscript} the sessions only put the events into a
+ * bounded queue and a writer thread writes them to the file. Events are
+ * dropped if the queue is full. Since a capture is useless without the start
+ * of its sessions it is not rolled; recording stops once the maximum size is
+ * reached.
+ */
+final class TelnetCapture {
+
+    /**
+     * A single recorded event.
+     */
+    private static final class Event {
+        private final long time;
+        private final int session;
+        private final String type;
+        private final byte[] data;
+
+        public Event(int session, String type, byte[] data) {
+            this.time = System.currentTimeMillis();
+            this.session = session;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Thread writing the queued events to a single file. Stops when it takes
+     * the {@link TelnetCapture#STOP} event or the file reached its maximum
+     * size. A writer that stopped on its own is detached from the capture, so
+     * the sessions stop recording.
+     */
+    private final class WriterThread extends Thread {
+
+        private final File file;
+        private final long maxSize;
+        private final long startTime = System.currentTimeMillis();
+        private final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>(QUEUE_CAPACITY);
+        private final StringBuilder line = new StringBuilder(256);
+        private OutputStream output = null;
+        private long size = 0;
+
+        public WriterThread(File file, long maxSize) {
+            super("TelnetScheduler-CaptureThread");
+            this.file = file;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (file.getParentFile() != null) {
+                    file.getParentFile().mkdirs();
+                }
+                output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+                put(HEADER);
+
+                while (size < maxSize) {
+                    Event event = events.take();
+                    if (event == STOP) {
+                        break;
+                    }
+
+                    write(event);
+                    if (events.isEmpty()) {
+                        output.flush();
+                    }
+                }
+
+                if (size >= maxSize) {
+                    Log.w(LOG_TAG, "Capture " + file + " reached its maximum size; stopped recording");
+                }
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Capture writer was interrupted");
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while writing capture " + file, e);
+            } finally {
+                Utils.safelyClose(output);
+                output = null;
+                detachWriter(this);
+                events.clear();
+            }
+        }
+
+        private void put(CharSequence text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                output.write(text.charAt(i));
+            }
+            size += text.length();
+        }
+
+        private void write(Event event) throws IOException {
+            line.setLength(0);
+            line.append(event.time - startTime).append(' ').append(event.session).append(' ').append(event.type);
+            if (event.data != null) {
+                line.append(' ');
+                escape(event.data, line);
+            }
+            line.append(LINE_SEPARATOR);
+            put(line);
+        }
+    }
+
+    static final String HEADER = "# dessert telnet capture\n";
+    static final String TYPE_OPEN = "open";
+    static final String TYPE_SEND = "send";
+    static final String TYPE_RECEIVE = "recv";
+    static final String TYPE_CLOSE = "close";
+
+    private static final String LOG_TAG = "DESSERT -> TelnetCapture";
+
+    private static final String LINE_SEPARATOR = "\n";
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Event STOP = new Event(0, null, null);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private volatile WriterThread writer = null;
+    private final AtomicInteger lastSessionID = new AtomicInteger();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /**
+     * Stops recording. The events recorded so far are still written unless
+     * the queue is full.
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+
+        // the writer must get the stop event even if the queue is full
+        WriterThread oldWriter = writer;
+        writer = null;
+        if (!oldWriter.events.offer(STOP)) {
+            oldWriter.events.clear();
+            oldWriter.events.offer(STOP);
+        }
+        logDroppedEvents();
+    }
+
+    /**
+     * @return <code>true</code> if the traffic is recorded
+     */
+    public boolean isOpen() {
+        return writer != null;
+    }
+
+    /**
+     * @return a new number to tell the events of a session apart
+     */
+    public int nextSessionID() {
+        return lastSessionID.incrementAndGet();
+    }
+
+    /**
+     * Starts recording to the given <code>file</code>. An existing file is
+     * overwritten. A capture that is already recording is closed before.
+     * 
+     * @param file file to write the capture to
+     * @param maxSize size in bytes after which recording stops
+     */
+    public synchronized void open(File file, int maxSize) {
+        close();
+        writer = new WriterThread(file, Math.max(BUFFER_SIZE, maxSize));
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records that the given session was closed.
+     */
+    public void recordClose(int session) {
+        record(session, TYPE_CLOSE, null);
+    }
+
+    /**
+     * Records that the given session opened a new connection.
+     */
+    public void recordOpen(int session) {
+        record(session, TYPE_OPEN, null);
+    }
+
+    /**
+     * Records the bytes read by the given session.
+     * 
+     * @param session the number of the session
+     * @param input buffer with the bytes read; its position is not changed
+     */
+    public void recordReceived(int session, ByteBuffer input) {
+        if (writer != null) {
+            record(session, TYPE_RECEIVE, toArray(input));
+        }
+    }
+
+    /**
+     * Records the bytes written by the given session.
+     * 
+     * @param session the number of the session
+     * @param request buffer with the bytes to write; its position is not
+     *            changed
+     */
+    public void recordSent(int session, ByteBuffer request) {
+        if (writer != null) {
+            record(session, TYPE_SEND, toArray(request));
+        }
+    }
+
+    /**
+     * Stops recording if the given writer is still the current one.
+     */
+    private synchronized void detachWriter(WriterThread stoppedWriter) {
+        if (writer == stoppedWriter) {
+            writer = null;
+            logDroppedEvents();
+        }
+    }
+
+    private void logDroppedEvents() {
+        long dropped = droppedEvents.getAndSet(0);
+        if (dropped > 0) {
+            Log.w(LOG_TAG, "Dropped " + dropped + " events because the capture could not keep up");
+        }
+    }
+
+    private void record(int session, String type, byte[] data) {
+        WriterThread currentWriter = writer;
+        if (currentWriter != null && !currentWriter.events.offer(new Event(session, type, data))) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Appends the given bytes to <code>text</code> in the escaped form used by
+     * the capture.
+     */
+    static void escape(byte[] data, StringBuilder text) {
+        for (byte b : data) {
+            int value = b & 0xFF;
+            switch (value) {
+            case '\\':
+                text.append("\\\\");
+                break;
+            case '\r':
+                text.append("\\r");
+                break;
+            case '\n':
+                text.append("\\n");
+                break;
+            case '\t':
+                text.append("\\t");
+                break;
+            default:
+                if (value >= 0x20 && value < 0x7F) {
+                    text.append((char) value);
+                } else {
+                    text.append("\\x").append(HEX_DIGITS[value >> 4]).append(HEX_DIGITS[value & 0x0F]);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reverts {@link #escape(byte[], StringBuilder)}.
+     * 
+     * @param text the escaped bytes
+     * @return the bytes
+     * @throws IllegalArgumentException if an escape sequence is malformed
+     */
+    static byte[] unescape(CharSequence text) {
+        byte[] buffer = new byte[text.length()];
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char chr = text.charAt(i);
+            if (chr != '\\') {
+                buffer[length++] = (byte) chr;
+                continue;
+            }
+
+            if (++i >= text.length()) {
+                throw new IllegalArgumentException("Incomplete escape sequence at the end of " + text);
+            }
+            switch (text.charAt(i)) {
+            case '\\':
+                buffer[length++] = '\\';
+                break;
+            case 'r':
+                buffer[length++] = '\r';
+                break;
+            case 'n':
+                buffer[length++] = '\n';
+                break;
+            case 't':
+                buffer[length++] = '\t';
+                break;
+            case 'x':
+                if (i + 2 >= text.length()) {
+                    throw new IllegalArgumentException("Incomplete escape sequence at the end of " + text);
+                }
+                buffer[length++] = (byte) Integer.parseInt(text.subSequence(i + 1, i + 3).toString(), 16);
+                i += 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown escape sequence \\" + text.charAt(i) + " in " + text);
+            }
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+}
@@ -27,20 +27,59 @@ import java.util.EnumSet;
 /**
  * A single telnet command consisting of the command string to be executed and a
  * set of necessary execution right to run the command.
+ * <p>
+ * Two commands are equal if they have the same command string and the same
+ * set of modes.
+ * <p>
+ * A command that only queries a value can be given a time to live. Its result
+ * is then cached by the {@link TelnetScheduler} and reused for the same
+ * command until the time to live expires or a state changing command is run.
  */
 public class TelnetCommand {
 
     private final String command;
     protected final EnumSet<TelnetCommandMode> modes;
+    private final long timeToLive;
 
     public TelnetCommand(String command, EnumSet<TelnetCommandMode> modes) {
+        this(command, modes, 0);
+    }
+
+    /**
+     * @param command the command string
+     * @param modes the modes the command can be run in
+     * @param timeToLive time in milliseconds the result of the command may be
+     *            cached; 0 for a command that must not be cached
+     */
+    public TelnetCommand(String command, EnumSet<TelnetCommandMode> modes, long timeToLive) {
         this.command = command;
         this.modes = EnumSet.copyOf(modes);
+        this.timeToLive = timeToLive;
     }
 
     public TelnetCommand(String command, TelnetCommandMode mode) {
         this.command = command;
         this.modes = EnumSet.of(mode);
+        this.timeToLive = 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        TelnetCommand other = (TelnetCommand) obj;
+        if (command == null) {
+            if (other.command != null)
+                return false;
+        } else if (!command.equals(other.command))
+            return false;
+        if (!modes.equals(other.modes))
+            return false;
+        return true;
     }
 
     public String getCommand() {
@@ -51,6 +90,23 @@ public class TelnetCommand {
         return modes;
     }
 
+    /**
+     * @return time in milliseconds the result of the command may be cached; 0
+     *         if it must not be cached
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((command == null) ? 0 : command.hashCode());
+        result = prime * result + modes.hashCode();
+        return result;
+    }
+
     public boolean isModeValid(TelnetCommandMode mode) {
         return modes.contains(mode);
     }
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+
+/**
+ * A blocking socket connection to the CLI telnet interface of the running
+ * daemon as used by the blocking engine of the {@link TelnetScheduler}.
+ * <p>
+ * The connection only transfers bytes; the protocol state is kept by a
+ * {@link TelnetSession}. Every read is bounded by a deadline, so a hanging
+ * daemon results in a {@link SocketTimeoutException} instead of a blocked
+ * worker.
+ */
+final class TelnetConnection {
+
+    private static final String LOG_TAG = "DESSERT -> TelnetConnection";
+
+    private volatile Socket socket = null;
+    private InputStream incomingData;
+    private OutputStream outgoingData;
+
+    // lock of the socket; not a monitor so that close() can cut a blocked read
+    private final ReentrantLock socketLock = new ReentrantLock();
+
+    /**
+     * Logs out of the telnet server and closes the connection. The connection
+     * can be opened again by calling {@link #connect(int, int)}.
+     * <p>
+     * If another thread is currently blocked on the connection the socket is
+     * closed right away without logging out, so the blocked thread gets an
+     * {@link IOException}.
+     */
+    public void close() {
+        if (!socketLock.tryLock()) {
+            Utils.safelyClose(socket);
+            socketLock.lock();
+        }
+
+        try {
+            if (socket != null && socket.isConnected() && !socket.isClosed() && !socket.isOutputShutdown()) {
+                try {
+                    write(TelnetSession.encode(TelnetSession.COMMAND_LOGOUT));
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Error while disconnecting from telnet server", e);
+                }
+            }
+            Utils.safelyClose(socket);
+
+            socket = null;
+            incomingData = null;
+            outgoingData = null;
+        } finally {
+            socketLock.unlock();
+        }
+    }
+
+    /**
+     * Opens the connection to the telnet server on the local host.
+     * 
+     * @param port port of the telnet server
+     * @param timeout time in milliseconds to wait for the connection; 0 to
+     *            wait forever
+     * @throws IOException
+     */
+    public void connect(int port, int timeout) throws IOException {
+        socketLock.lock();
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress("localhost", port), timeout);
+            incomingData = socket.getInputStream();
+            outgoingData = socket.getOutputStream();
+        } finally {
+            socketLock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the socket is opened
+     */
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * Reads the available bytes from the connection into the given
+     * <code>buffer</code>. Blocks until at least one byte is read.
+     * 
+     * @param buffer a heap buffer to put the bytes to
+     * @param deadline point in time in milliseconds at which the read fails;
+     *            0 to wait forever
+     * @throws SocketTimeoutException if no byte was read until the deadline
+     * @throws EOFException if the telnet server closed the connection
+     * @throws IOException
+     */
+    public void read(ByteBuffer buffer, long deadline) throws IOException {
+        socketLock.lock();
+        try {
+            checkConnected();
+
+            if (socket.isInputShutdown()) {
+                throw new IllegalStateException("Incoming stream must not be closedo");
+            }
+
+            long remaining = 0;
+            if (deadline != 0) {
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out while waiting for the prompt");
+                }
+            }
+            socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+
+            // data comes as 8bit values containing 7bit ascii with a leading 0 bit
+            int count = incomingData.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (count == -1) {
+                throw new EOFException("Connection was closed by the telnet server");
+            }
+            buffer.position(buffer.position() + count);
+        } finally {
+            socketLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the given <code>buffer</code> with a
+     * single write to the connection.
+     * 
+     * @param buffer a heap buffer with the bytes to send
+     * @throws IOException
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        socketLock.lock();
+        try {
+            checkConnected();
+
+            if (socket.isOutputShutdown()) {
+                throw new IllegalStateException("Outgoing stream must not be closedo");
+            }
+
+            outgoingData.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            outgoingData.flush();
+            buffer.position(buffer.limit());
+        } finally {
+            socketLock.unlock();
+        }
+    }
+
+    private void checkConnected() throws IOException {
+        if (socket == null || socket.isClosed() || !socket.isConnected()) {
+            throw new IOException("Must be connected to a telnet server");
+        }
+    }
+}
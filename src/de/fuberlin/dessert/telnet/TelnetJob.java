@@ -37,6 +37,13 @@ package de.fuberlin.dessert.telnet;
  * <code>false</code> and the {@link #onResult(String[], TelnetCommand)}
  * callback was called the service will call the {@link #onCompleted()} callback
  * to signal the job that the processing is completed.
+ * <p>
+ * If the scheduler runs in pipelined mode (see
+ * {@link TelnetScheduler#setPipelined(boolean)}) it may call
+ * {@link #nextCommand()} several times before the results of these commands
+ * are supplied. The results are supplied in the order the commands were
+ * returned. A job must therefore not decide on its next command based on the
+ * result of the previous one.
  */
 public interface TelnetJob {
 
@@ -61,7 +68,8 @@ public interface TelnetJob {
      * Callback method called by the telnet service when the job is abandoned
      * and will not be processed anymore.
      * <p>
-     * Can only occur until {@link #onStart()} was called.
+     * Can only occur until {@link #onStart()} was called, unless the job was
+     * cancelled by its {@link TelnetJobHandle} while it was running.
      */
     public void onAborted();
 
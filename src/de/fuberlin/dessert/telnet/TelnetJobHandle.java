@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+/**
+ * Handle of a job queued in a {@link TelnetScheduler} to cancel it without
+ * disconnecting the sessions.
+ * <p>
+ * A queued job is only marked as cancelled; the scheduler skips it when it
+ * looks for the next job, so cancelling does not search the queue. A job that
+ * is already running is stopped as soon as the result of its current command
+ * was read. The session stays connected and keeps its mode for the next job.
+ * In both cases the onAborted handler of the job is called.
+ */
+public interface TelnetJobHandle {
+
+    /**
+     * Cancels the job unless it is done already.
+     * 
+     * @return <code>true</code> if the job was taken out of the queue or will
+     *         be stopped after its current command; <code>false</code> if it
+     *         is done or was cancelled before
+     */
+    public boolean cancel();
+
+    /**
+     * @return <code>true</code> if the job was cancelled or aborted by the
+     *         scheduler before it was done
+     */
+    public boolean isCancelled();
+
+    /**
+     * @return <code>true</code> if the job will not run any more commands
+     */
+    public boolean isDone();
+}
@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+import de.fuberlin.dessert.telnet.TelnetScheduler.Priority;
+
+/**
+ * Local telnet server that lets an interactive user share the CLI of the
+ * daemon with the {@link TelnetScheduler}.
+ * <p>
+ * An external telnet client connects to this proxy instead of the CLI port of
+ * the daemon. Every command line the user enters is run as a job on the
+ * sessions of the scheduler, in between the background jobs, and its output
+ * is streamed back to the client. So neither the sessions of the scheduler
+ * nor its queued jobs have to be given up while the user is logged in.
+ * <p>
+ * The proxy keeps the mode of every user itself. The mode commands
+ * (<code>enable</code>, <code>disable</code>, <code>configure terminal</code>,
+ * <code>exit</code> and <code>end</code>) only change the prompt and the mode
+ * the following command lines are run in; the sessions of the scheduler
+ * switch modes as needed. Sub modes of the CLI other than the configuration
+ * mode are not supported: command lines that would change the mode or the
+ * terminal settings of a session behind the back of the scheduler, like
+ * <code>interface ...</code> or an abbreviated mode command, are rejected
+ * without being run.
+ */
+public final class TelnetProxy {
+
+    /**
+     * Connection of a single user.
+     */
+    private final class Client implements Runnable {
+
+        private final Socket socket;
+        private TelnetCommandMode mode = TelnetCommandMode.DEFAULT;
+        private boolean isAfterCarriageReturn = false;
+
+        public Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                InputStream input = new BufferedInputStream(socket.getInputStream());
+                OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+
+                writePrompt(output);
+                StringBuilder line = new StringBuilder();
+                while (readLine(input, line)) {
+                    if (!execute(line.toString().trim(), output)) {
+                        break;
+                    }
+                    writePrompt(output);
+                }
+            } catch (IOException e) {
+                // the client closed the connection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (openSockets) {
+                    openSockets.remove(socket);
+                }
+                Utils.safelyClose(socket);
+            }
+        }
+
+        /**
+         * Handles a mode command or runs the command line on the scheduler.
+         * 
+         * @return <code>false</code> if the user logged out
+         */
+        private boolean execute(String request, OutputStream output) throws IOException, InterruptedException {
+            if (request.length() == 0) {
+                return true;
+            }
+
+            if (request.equals(TelnetSession.COMMAND_LOGOUT) || request.equals(COMMAND_QUIT)) {
+                return false;
+            } else if (request.equals(COMMAND_ENABLE)) {
+                if (mode == TelnetCommandMode.DEFAULT) {
+                    mode = TelnetCommandMode.PRIVILEGED;
+                }
+            } else if (request.equals(COMMAND_DISABLE)) {
+                mode = TelnetCommandMode.DEFAULT;
+            } else if (request.equals(COMMAND_CONFIG)) {
+                if (mode == TelnetCommandMode.PRIVILEGED) {
+                    mode = TelnetCommandMode.CONFIG;
+                }
+            } else if (request.equals(COMMAND_EXIT)) {
+                if (mode != TelnetCommandMode.CONFIG) {
+                    return false;
+                }
+                mode = TelnetCommandMode.PRIVILEGED;
+            } else if (request.equals(COMMAND_END)) {
+                if (mode == TelnetCommandMode.CONFIG) {
+                    mode = TelnetCommandMode.PRIVILEGED;
+                }
+            } else if (isStateCommand(request)) {
+                write(output, MESSAGE_REJECTED);
+                write(output, LINE_ENDING);
+            } else {
+                runCommand(request, output);
+            }
+            return true;
+        }
+
+        /**
+         * Reads the next command line. Telnet option negotiations are
+         * skipped; backspace removes the last character.
+         * 
+         * @return <code>false</code> if the connection was closed
+         */
+        private boolean readLine(InputStream input, StringBuilder line) throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = input.read()) != -1) {
+                boolean wasAfterCarriageReturn = isAfterCarriageReturn;
+                isAfterCarriageReturn = false;
+
+                if (b == IAC) {
+                    skipNegotiation(input);
+                } else if (b == '\r') {
+                    isAfterCarriageReturn = true;
+                    return true;
+                } else if (b == '\n') {
+                    if (!wasAfterCarriageReturn) {
+                        return true;
+                    }
+                } else if (b == 0x08 || b == 0x7F) {
+                    if (line.length() > 0) {
+                        line.setLength(line.length() - 1);
+                    }
+                } else if (b >= 0x20 && line.length() < MAX_LINE_LENGTH) {
+                    line.append((char) b);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Runs the given command line in the current mode as a job on the
+         * scheduler and writes its output until it is done. The job is
+         * cancelled if the client goes away before all of its output was
+         * written.
+         */
+        private void runCommand(String request, OutputStream output) throws IOException, InterruptedException {
+            ProxyJob job = new ProxyJob(new TelnetCommand(request, EnumSet.of(mode)));
+            TelnetJobHandle handle = scheduler.enqueueJob(job, Priority.HIGH);
+            boolean completed = false;
+            try {
+                String line;
+                while ((line = job.output.take()) != END_OF_OUTPUT) {
+                    write(output, line);
+                    write(output, LINE_ENDING);
+                    if (job.output.isEmpty()) {
+                        output.flush();
+                    }
+                }
+                completed = true;
+            } finally {
+                // the end of the output is signaled before the handle is done; never cancel a finished job
+                if (!completed) {
+                    handle.cancel();
+                }
+            }
+        }
+
+        private void writePrompt(OutputStream output) throws IOException {
+            switch (mode) {
+            case DEFAULT:
+                write(output, hostname + "> ");
+                break;
+            case PRIVILEGED:
+                write(output, hostname + "# ");
+                break;
+            default:
+                write(output, hostname + "(config)# ");
+                break;
+            }
+            output.flush();
+        }
+    }
+
+    /**
+     * Runs a single command line and hands its output over to the thread of
+     * the client, so a slow client never holds up a session of the scheduler.
+     */
+    private static final class ProxyJob implements StreamingTelnetJob {
+
+        private final TelnetCommand command;
+        private final BlockingQueue<String> output = new LinkedBlockingQueue<String>();
+        private boolean isSent = false;
+
+        public ProxyJob(TelnetCommand command) {
+            this.command = command;
+        }
+
+        @Override
+        public boolean hasMoreCommands() {
+            return !isSent;
+        }
+
+        @Override
+        public TelnetCommand nextCommand() {
+            isSent = true;
+            return command;
+        }
+
+        @Override
+        public void onAborted() {
+            output.offer(MESSAGE_ABORTED);
+            output.offer(END_OF_OUTPUT);
+        }
+
+        @Override
+        public void onCompleted() {
+            output.offer(END_OF_OUTPUT);
+        }
+
+        @Override
+        public void onError() {
+            output.offer(MESSAGE_ERROR);
+            output.offer(END_OF_OUTPUT);
+        }
+
+        @Override
+        public void onLine(CharSequence line, TelnetCommand lineCommand) {
+            output.offer(line.toString());
+        }
+
+        @Override
+        public void onResult(String[] resultValues, TelnetCommand resultCommand) {
+            // the lines were already handed over
+        }
+
+        @Override
+        public void onStart() {
+            // nothing to do
+        }
+    }
+
+    private static final String LOG_TAG = "DESSERT -> TelnetProxy";
+
+    private static final String COMMAND_QUIT = "quit";
+    private static final String COMMAND_ENABLE = "enable";
+    private static final String COMMAND_DISABLE = "disable";
+    private static final String COMMAND_CONFIG = "configure terminal";
+    private static final String COMMAND_EXIT = "exit";
+    private static final String COMMAND_END = "end";
+
+    /**
+     * first words of command lines that change the state of a session; also
+     * matched if abbreviated
+     */
+    private static final String[] STATE_COMMANDS = new String[] {
+            COMMAND_QUIT, COMMAND_ENABLE, COMMAND_DISABLE, "configure", COMMAND_EXIT, COMMAND_END,
+            TelnetSession.COMMAND_LOGOUT, "interface", "line", "router", "terminal" };
+
+    /** shorter first words are only matched against the full state commands */
+    private static final int MIN_ABBREVIATION_LENGTH = 3;
+
+    private static final String MESSAGE_REJECTED = "% Command is not supported by the proxy";
+    private static final String MESSAGE_ABORTED = "% Command was not run";
+    private static final String MESSAGE_ERROR = "% Error while running the command";
+
+    /** marks the end of the output of a job; compared by identity */
+    private static final String END_OF_OUTPUT = new String();
+
+    private static final String LINE_ENDING = "\r\n";
+
+    /** telnet "interpret as command" byte starting an option negotiation */
+    private static final int IAC = 0xFF;
+    private static final int SB = 0xFA;
+    private static final int SE = 0xF0;
+    private static final int WILL = 0xFB;
+    private static final int DONT = 0xFE;
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final TelnetScheduler scheduler;
+    private final String hostname;
+    private final Set<Socket> openSockets = new HashSet<Socket>();
+    private ServerSocket serverSocket = null;
+
+    /**
+     * @param scheduler the scheduler to run the command lines on
+     * @param hostname name to show in the prompt
+     */
+    public TelnetProxy(TelnetScheduler scheduler, String hostname) {
+        this.scheduler = scheduler;
+        this.hostname = hostname;
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones. Commands still
+     * running for a closed connection are cancelled.
+     */
+    public void close() {
+        synchronized (openSockets) {
+            for (Socket socket : openSockets) {
+                Utils.safelyClose(socket);
+            }
+            openSockets.clear();
+            if (serverSocket != null) {
+                Utils.safelyClose(serverSocket);
+                serverSocket = null;
+            }
+        }
+    }
+
+    /**
+     * @return the port the proxy listens on or -1 if it is not started
+     */
+    public int getPort() {
+        synchronized (openSockets) {
+            return serverSocket == null ? -1 : serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts accepting connections from the local host on the given port.
+     * 
+     * @param port the port to listen on; 0 for any free port
+     * @throws IOException if the port could not be bound
+     */
+    public void start(int port) throws IOException {
+        final ServerSocket socket = new ServerSocket(port, 0, InetAddress.getByName("127.0.0.1"));
+        synchronized (openSockets) {
+            serverSocket = socket;
+        }
+
+        Thread acceptThread = new Thread("TelnetProxy-AcceptThread") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket clientSocket = socket.accept();
+                        synchronized (openSockets) {
+                            if (serverSocket != socket) {
+                                Utils.safelyClose(clientSocket);
+                                return;
+                            }
+                            openSockets.add(clientSocket);
+                        }
+
+                        Thread clientThread = new Thread(new Client(clientSocket), "TelnetProxy-ClientThread");
+                        clientThread.setDaemon(true);
+                        clientThread.start();
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed
+                }
+                Log.i(LOG_TAG, "Stopped accepting connections");
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Checks whether the first word of the given command line is one of the
+     * {@link #STATE_COMMANDS} or an abbreviation of at least
+     * {@link #MIN_ABBREVIATION_LENGTH} characters of one. The exact mode
+     * commands handled by the proxy itself must be checked before.
+     */
+    private static boolean isStateCommand(String request) {
+        int end = 0;
+        while (end < request.length() && !Character.isWhitespace(request.charAt(end))) {
+            end++;
+        }
+        String word = request.substring(0, end).toLowerCase();
+        for (String command : STATE_COMMANDS) {
+            if (word.length() >= MIN_ABBREVIATION_LENGTH ? command.startsWith(word) : command.equals(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the rest of an option negotiation whose IAC byte was just read.
+     */
+    private static void skipNegotiation(InputStream input) throws IOException {
+        int command = input.read();
+        if (command >= WILL && command <= DONT) {
+            input.read(); // the option
+        } else if (command == SB) {
+            // skip up to IAC SE
+            int previous = 0;
+            int b;
+            while ((b = input.read()) != -1 && !(previous == IAC && b == SE)) {
+                previous = b;
+            }
+        }
+    }
+
+    private static void write(OutputStream output, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char chr = text.charAt(i);
+            output.write(chr < 0x80 ? chr : '?');
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental parser for the output of the libcli telnet server.
+ * <p>
+ * The parser is fed byte by byte and splits the output into lines until it
+ * finds the prompt of the server. The prompt has the form
+ * <code>localhost:XXXX&gt;</code>, <code>localhost:XXXX#</code> or
+ * <code>localhost:XXXX(config)#</code> and is recognized by a small state
+ * machine that advances with every character of the current line. This way
+ * neither a regular expression nor a temporary string is needed to check for
+ * the prompt.
+ * <p>
+ * The lines are collected unless a {@link LineHandler} takes them as they are
+ * completed. Call {@link #reset()} before parsing the output of the next
+ * command.
+ */
+final class TelnetResponseParser {
+
+    /**
+     * Gets the lines of the output as soon as they are completed.
+     */
+    interface LineHandler {
+
+        /**
+         * @param line the completed line; only valid until this method
+         *            returns
+         * @return <code>true</code> if the line was taken and must not be
+         *         collected by the parser
+         */
+        boolean onLine(CharSequence line);
+    }
+
+    private static final String PROMPT_PREFIX = "localhost:";
+    private static final String PROMPT_CONFIG = "(config)";
+    private static final int MAX_PROMPT_ID_LENGTH = 4;
+
+    // states of the prompt matcher; values in between are positions within the prefix, the id or the config marker
+    private static final int STATE_MISMATCH = -1;
+    private static final int STATE_ID = PROMPT_PREFIX.length();
+    private static final int STATE_CONFIG = STATE_ID + MAX_PROMPT_ID_LENGTH + 1;
+
+    private final StringBuilder line = new StringBuilder(128);
+    private final LineHandler lineHandler;
+    private List<String> lines = new ArrayList<String>();
+
+    private boolean discardedPreviousPrompt; // first line is always the last prompt; we discard this one
+    private boolean gotCR; // last character was a CR
+    private int promptState;
+    private TelnetCommandMode promptMode;
+
+    /**
+     * @param lineHandler handler to offer every completed line to first;
+     *            <code>null</code> to collect all lines
+     */
+    public TelnetResponseParser(LineHandler lineHandler) {
+        this.lineHandler = lineHandler;
+    }
+
+    /**
+     * Feeds the next byte of the server output into the parser.
+     * 
+     * @param b the byte as read from the telnet server
+     * @return <code>true</code> if this byte completed the prompt
+     */
+    public boolean consume(int b) {
+        // handle CR without the following LF
+        if (gotCR && b != 0x0A) {
+            append((char) 0x0D);
+            gotCR = false;
+        }
+
+        switch (b) {
+        case 0x0D:
+            // must wait for the next character because this can be a line ending CR LF
+            gotCR = true;
+            break;
+        case 0x0A:
+            // it's either an encoded line ending or just a LF as is
+            if (gotCR) {
+                if (discardedPreviousPrompt) {
+                    if (lineHandler == null || !lineHandler.onLine(line)) {
+                        lines.add(line.toString());
+                    }
+                } else {
+                    discardedPreviousPrompt = true;
+                }
+                line.setLength(0);
+                promptState = 0;
+                gotCR = false;
+            } else {
+                append((char) 0x0A);
+            }
+            break;
+        default:
+            append((char) b);
+            break;
+        }
+
+        return promptMode != null;
+    }
+
+    /**
+     * @return the lines read since the last call to {@link #reset()}; the
+     *         returned list is not touched by the parser anymore
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the mode as signaled by the prompt or <code>null</code> if no
+     *         prompt was found yet
+     */
+    public TelnetCommandMode getPromptMode() {
+        return promptMode;
+    }
+
+    /**
+     * Resets the parser to start reading the output of the next command.
+     */
+    public void reset() {
+        line.setLength(0);
+        lines = new ArrayList<String>();
+        discardedPreviousPrompt = false;
+        gotCR = false;
+        promptState = 0;
+        promptMode = null;
+    }
+
+    private void append(char chr) {
+        line.append(chr);
+
+        // advance the prompt matcher; once it failed it stays failed until the end of the line
+        if (promptState == STATE_MISMATCH) {
+            return;
+        }
+
+        if (promptState < STATE_ID) {
+            promptState = PROMPT_PREFIX.charAt(promptState) == chr ? promptState + 1 : STATE_MISMATCH;
+        } else if (promptState < STATE_CONFIG) {
+            int idLength = promptState - STATE_ID;
+            if (isPromptIDChar(chr) && idLength < MAX_PROMPT_ID_LENGTH) {
+                promptState++;
+            } else if (idLength == 0) {
+                promptState = STATE_MISMATCH;
+            } else if (chr == '>') {
+                promptMode = TelnetCommandMode.DEFAULT;
+            } else if (chr == '#') {
+                promptMode = TelnetCommandMode.PRIVILEGED;
+            } else if (chr == PROMPT_CONFIG.charAt(0)) {
+                promptState = STATE_CONFIG + 1;
+            } else {
+                promptState = STATE_MISMATCH;
+            }
+        } else {
+            int configLength = promptState - STATE_CONFIG;
+            if (configLength < PROMPT_CONFIG.length()) {
+                promptState = PROMPT_CONFIG.charAt(configLength) == chr ? promptState + 1 : STATE_MISMATCH;
+            } else if (chr == '#') {
+                promptMode = TelnetCommandMode.CONFIG;
+            } else {
+                promptState = STATE_MISMATCH;
+            }
+        }
+    }
+
+    /**
+     * Same character class as <code>[0-9a-zA-z]</code> in the former prompt
+     * pattern.
+     */
+    private static boolean isPromptIDChar(char chr) {
+        return (chr >= '0' && chr <= '9') || (chr >= 'A' && chr <= 'z');
+    }
+}
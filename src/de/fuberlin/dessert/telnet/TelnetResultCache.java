@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Cache of the results of getter commands shared by all sessions of a
+ * {@link TelnetScheduler}.
+ * <p>
+ * Only commands with a time to live (see
+ * {@link TelnetCommand#getTimeToLive()}) are cached. The key is the command
+ * string together with its modes. Any state changing command invalidates the
+ * whole cache; a result read for a command that was sent before the
+ * invalidation is not stored.
+ */
+final class TelnetResultCache {
+
+    private static final class Entry {
+        private final String[] result;
+        private final long expires;
+
+        public Entry(String[] result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    private static final int MAX_ENTRIES = 256;
+
+    private final Map<TelnetCommand, Entry> entries = new HashMap<TelnetCommand, Entry>();
+    private int generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Returns the cached result of the given <code>command</code>.
+     * 
+     * @param command the command to look up
+     * @return a copy of the result or <code>null</code> if the command has no
+     *         valid result in the cache
+     */
+    public synchronized String[] get(TelnetCommand command) {
+        Entry entry = entries.get(command);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            entries.remove(command);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.result.clone();
+    }
+
+    /**
+     * @return the generation of the cache; changes with every invalidation
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all results from the cache.
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+        generation++;
+    }
+
+    /**
+     * Stores the result of the given <code>command</code> for its time to
+     * live.
+     * 
+     * @param command the executed command
+     * @param result the result of the command
+     * @param sentGeneration generation of the cache at the time the command
+     *            was sent; the result is dropped if the cache was invalidated
+     *            since then
+     */
+    public synchronized void put(TelnetCommand command, String[] result, int sentGeneration) {
+        if (command.getTimeToLive() <= 0 || sentGeneration != generation) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (entries.size() >= MAX_ENTRIES) {
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                if (iterator.next().expires <= now) {
+                    iterator.remove();
+                }
+            }
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+        }
+
+        entries.put(command, new Entry(result.clone(), now + command.getTimeToLive()));
+    }
+}
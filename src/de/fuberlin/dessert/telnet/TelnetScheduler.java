@@ -22,21 +22,32 @@
  ******************************************************************************/
 package de.fuberlin.dessert.telnet;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
-import de.fuberlin.dessert.Utils;
+import de.fuberlin.dessert.event.SchedulerStatsEventListener;
 import de.fuberlin.dessert.telnet.jobs.SingleCommandTelnetJob;
 
 /**
@@ -44,19 +55,103 @@ import de.fuberlin.dessert.telnet.jobs.SingleCommandTelnetJob;
  * <p>
  * You can queue {@link TelnetJob} objects with different priorities and they
  * get executed as soon as there are no more de.fuberlin.dessert.telnet.jobs
- * with a higher priority. There is no guarantee that the job will be executed
- * at all if more and more de.fuberlin.dessert.telnet.jobs of a higher priority
- * are inserted.
+ * with a higher priority.
+ * <p>
+ * To keep a steady stream of higher prioritized jobs from starving the others
+ * a waiting job is raised by one priority for every aging interval it waited
+ * (see {@link #setAgingInterval(int)}). A job that waited longer than the
+ * maximum queue wait (see {@link #setMaxQueueWait(int)}) is executed next
+ * regardless of its priority.
+ * <p>
+ * The scheduler keeps cheap counters of its queues and the traffic on the
+ * telnet interface. They can be read by {@link #getStats()} or by registering
+ * a {@link SchedulerStatsEventListener}.
  * <p>
  * The scheduler must be primed by calling {@link #setConnectionDetails(int)}.
  * Any job executed after this call will be executed on the new connection as
  * specified by this call.
  * <p>
+ * The scheduler can run several sessions on the telnet server at once. Each
+ * session keeps track of its own {@link TelnetCommandMode}. A queued job is executed by whichever session is
+ * idle first. Jobs that must not overtake each other can implement
+ * {@link OrderedTelnetJob}; with {@link #setSessionAffinity(boolean)} enabled
+ * jobs with the same ordering key are kept on the same session.
+ * <p>
+ * Within the same {@link Priority} a session prefers jobs whose first command
+ * is valid in the {@link TelnetCommandMode} the session is currently in (see
+ * {@link PeekableTelnetJob}). This saves the commands needed to switch modes.
+ * A job that was passed over {@value #MAX_MODE_SKIPS} times is executed next
+ * regardless of its mode, so no job waits forever. This can be disabled with
+ * {@link #setModeAffinity(boolean)}.
+ * <p>
+ * A {@link CoalescableTelnetJob} that is enqueued while an equal job is queued
+ * or running is attached to that job instead of being queued on its own.
+ * <p>
+ * The results of commands with a time to live (see
+ * {@link TelnetCommand#getTimeToLive()}) are cached and reused without a round
+ * trip. Any other command run in {@link TelnetCommandMode#CONFIG} mode clears
+ * the cache.
+ * <p>
+ * A job fails with its onError handler if the result of a command is not read
+ * within the command timeout or if the whole job takes longer than the job
+ * timeout (see {@link #setCommandTimeout(int)} and {@link #setJobTimeout(int)}
+ * ). The session of a failed job is closed and opened again for the next job,
+ * so a hanging command does not stall the queue.
+ * <p>
+ * If a connection cannot be opened, further attempts are delayed by an
+ * exponentially growing backoff until a connection succeeds again. A
+ * {@link RetryableTelnetJob} whose connection failed or broke is queued again
+ * up to {@value #MAX_RETRIES} times; any other job fails right away with its
+ * onAborted handler if it was not started yet or its onError handler
+ * otherwise.
+ * <p>
+ * With a warm mode set (see {@link #setWarmMode(TelnetCommandMode)}) the
+ * sessions are opened and brought into that mode as soon as the connection
+ * details are set, so the first jobs do not wait for the connection. While
+ * no job is run the sessions can be kept alive by sending an empty command
+ * line every keep-alive interval (see {@link #setKeepAliveInterval(int)}).
+ * <p>
+ * Every result read from the telnet server can be recorded to a size capped
+ * transcript file (see {@link #setTranscriptFile(File, int)}). The file is
+ * written by a background thread, so the sessions never wait for the disk.
+ * The raw bytes exchanged with the server can be captured the same way (see
+ * {@link #setCaptureFile(File, int)}) and replayed by the
+ * <code>ReplayServer</code> of the <code>tools</code> source tree to reproduce
+ * a problem without the daemon.
+ * <p>
+ * A single job can be cancelled by the {@link TelnetJobHandle} returned when
+ * it is enqueued. A running job is stopped after its current command without
+ * closing its session.
+ * <p>
  * To force a disconnect of the scheduler, interrupt the currently executed job
  * and abort an outstanding job in the queue you can call {@link #disconnect()}.
  * To fully reset the scheduler you can call {@link #resetScheduler()}.
+ * <p>
+ * By default each command of a job is sent after the result of the previous
+ * command was read. With {@link #setPipelined(boolean)} the scheduler sends all
+ * consecutive commands of a job that are valid in the same
+ * {@link TelnetCommandMode} at once and splits the output by counting the
+ * prompts afterwards.
+ * <p>
+ * The sessions are driven by one of two engines as chosen by
+ * {@link #createScheduler(Engine, int)}. The {@link Engine#BLOCKING} engine
+ * uses a worker thread with a blocking socket per session. The
+ * {@link Engine#SELECTOR} engine drives all sessions from a single thread with
+ * non-blocking socket channels. Both engines share the queue and the
+ * scheduling policy of this class and the protocol handling of
+ * {@link TelnetSession}, so they behave the same for any {@link TelnetJob}.
+ * <p>
+ * Each {@link Priority} has its own lock-free queue. Enqueueing a job never
+ * waits for a session and never blocks on socket I/O; idle sessions are parked
+ * and woken up whenever a job is enqueued.
+ * <p>
+ * The queue of each priority is unbounded by default. With
+ * {@link #setQueueCapacity(Priority, int, RejectionPolicy, int)} it takes at
+ * most the given number of jobs; the {@link RejectionPolicy} decides what
+ * happens to a job that does not fit. A rejected job gets its onAborted
+ * handler called and is counted (see {@link #getRejectedJobCount(Priority)}).
  */
-public class TelnetScheduler {
+public abstract class TelnetScheduler {
 
     /**
      * Priorities of a scheduled job. Higher prioritized jobs are executed
@@ -75,29 +170,55 @@ public class TelnetScheduler {
         LOWEST
     }
 
-    private static final class JobWrapper implements Comparable<JobWrapper> {
+    /**
+     * What to do with a job enqueued while the queue of its priority is full.
+     */
+    public static enum RejectionPolicy {
+        /** Abort the job that waited longest to make room for the new one */
+        DROP_OLDEST,
+        /** Abort the new job */
+        DROP_NEW,
+        /** Wait for room up to the timeout and abort the new job after that */
+        BLOCK
+    }
+
+    /**
+     * Engines to drive the sessions of a scheduler.
+     */
+    public static enum Engine {
+        /** One worker thread with a blocking socket per session */
+        BLOCKING,
+        /** A single thread driving all sessions with a selector */
+        SELECTOR
+    }
+
+    static final class JobWrapper {
 
         private final Priority priority;
         private final TelnetJob job;
         private final int id;
+        private final long enqueueTime;
+        private final JobHandle handle;
 
-        public JobWrapper(TelnetJob job, Priority priority, int id) {
-            this.job = job;
-            this.priority = priority;
-            this.id = id;
-        }
+        /** point in time the job was taken out of the queue; only used by the session executing it */
+        private long startTime = 0;
 
-        @Override
-        public int compareTo(JobWrapper other) {
-            if (this == other) {
-                return 0;
-            }
+        /** number of times the job was queued again after its connection was lost */
+        private int retries = 0;
 
-            if (this.priority.ordinal() != other.priority.ordinal()) {
-                return this.priority.ordinal() - other.priority.ordinal();
-            }
+        /** number of times a job of the same priority was executed before this one to save a mode switch */
+        private int modeSkips = 0;
+
+        /** the session that must execute the job; null if any session may */
+        private Object boundOwner = null;
 
-            return this.id - other.id;
+        public JobWrapper(TelnetJob job, Priority priority, int id, long enqueueTime, JobHandle handle) {
+            this.job = job;
+            this.priority = priority;
+            this.id = id;
+            this.enqueueTime = enqueueTime;
+            this.handle = handle;
+            handle.wrapper = this;
         }
 
         @Override
@@ -121,6 +242,52 @@ public class TelnetScheduler {
             return true;
         }
 
+        /**
+         * @return the ordering keys of the wrapped job; empty if it has none
+         */
+        public Collection<?> getOrderingKeys() {
+            Object key = job instanceof OrderedTelnetJob ? ((OrderedTelnetJob) job).getOrderingKey() : null;
+            if (key == null) {
+                return Collections.emptySet();
+            }
+            if (key instanceof Collection<?>) {
+                return (Collection<?>) key;
+            }
+            return Collections.singleton(key);
+        }
+
+        /**
+         * @return <code>true</code> if the next command of the wrapped job is
+         *         known to be valid in the given <code>mode</code>
+         */
+        public boolean isValidIn(TelnetCommandMode mode) {
+            if (job instanceof PeekableTelnetJob) {
+                TelnetCommand command = ((PeekableTelnetJob) job).peekCommand();
+                return command != null && command.isModeValid(mode);
+            }
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if the first command of the job is known
+         *         and not valid in the given mode
+         */
+        public boolean needsModeSwitch(TelnetCommandMode mode) {
+            if (job instanceof PeekableTelnetJob) {
+                TelnetCommand command = ((PeekableTelnetJob) job).peekCommand();
+                return command != null && !command.isModeValid(mode);
+            }
+            return false;
+        }
+
+        public JobHandle getHandle() {
+            return handle;
+        }
+
+        public TelnetJob getJob() {
+            return job;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -134,94 +301,249 @@ public class TelnetScheduler {
     }
 
     /**
-     * Thread to run the actual job execution logic. Calls through to the outer
-     * class.
+     * State of a job from being queued until it is done. The handle is kept
+     * when a coalesced job is moved to the queue of a higher priority.
      */
-    private final class WorkerThread extends Thread {
-        public WorkerThread() {
-            super("TelnetScheduler-WorkerThread");
+    final class JobHandle implements TelnetJobHandle {
+
+        private final AtomicInteger state;
+
+        /** the wrapper the job is currently queued with */
+        private volatile JobWrapper wrapper;
+
+        public JobHandle(int initialState) {
+            this.state = new AtomicInteger(initialState);
         }
 
+        /**
+         * A queued job is left in its queue until a session skips it, so no
+         * queue has to be searched.
+         */
         @Override
-        public void run() {
-            isRunning = true;
-            while (isRunning) {
-                Thread.interrupted();
-
-                try {
-                    // wait or get next job
-                    TelnetJob job = getNextJob();
-                    if (job == null) {
-                        Log.w(LOG_TAG, "Queued job was null; skipping job");
-                        continue;
-                    }
+        public boolean cancel() {
+            if (abort()) {
+                JobWrapper current = wrapper;
+                decrementQueueSize(current.priority);
+                signalJobAborted(current.job);
+                return true;
+            }
+            return state.compareAndSet(JOB_RUNNING, JOB_STOPPING);
+        }
 
-                    // check if connection needs to established
-                    boolean connectionOK = ensureConnection();
-                    if (!connectionOK) {
-                        Log.w(LOG_TAG, "Problem creating connection; skipping job");
-                        continue;
-                    }
+        @Override
+        public boolean isCancelled() {
+            int current = state.get();
+            return current == JOB_CANCELLED || current == JOB_STOPPING || current == JOB_STOPPED;
+        }
 
-                    // execute job
-                    if (!executeJob(job)) {
-                        Log.w(LOG_TAG, "Problem while executing job; skipping job");
-                    }
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Got an exception in the worker thread loop", e);
-                }
+        @Override
+        public boolean isDone() {
+            int current = state.get();
+            return current == JOB_CANCELLED || current == JOB_STOPPED || current == JOB_DONE;
+        }
+
+        /**
+         * Marks the queued job as aborted. The caller must count the job as
+         * taken out of its queue and signal the abort.
+         * 
+         * @return <code>false</code> if the job is not queued anymore
+         */
+        boolean abort() {
+            return state.compareAndSet(JOB_QUEUED, JOB_CANCELLED);
+        }
+
+        /**
+         * Marks the running job as done, or as stopped if it was cancelled.
+         */
+        void finish() {
+            if (!state.compareAndSet(JOB_RUNNING, JOB_DONE)) {
+                state.compareAndSet(JOB_STOPPING, JOB_STOPPED);
             }
         }
+
+        /**
+         * @return <code>true</code> if the job is still in its queue and not
+         *         cancelled
+         */
+        boolean isQueued() {
+            return state.get() == JOB_QUEUED;
+        }
+
+        /**
+         * @return <code>true</code> if the running job was cancelled and must
+         *         not run any further command
+         */
+        boolean isStopping() {
+            return state.get() == JOB_STOPPING;
+        }
+
+        /**
+         * Marks the job that was done as queued again.
+         */
+        void requeue() {
+            state.set(JOB_QUEUED);
+        }
+
+        /**
+         * Marks the queued job as running.
+         * 
+         * @return <code>false</code> if the job was cancelled
+         */
+        boolean start() {
+            return state.compareAndSet(JOB_QUEUED, JOB_RUNNING);
+        }
+    }
+
+    /**
+     * Binding of an ordering key to the session currently executing the jobs
+     * of this key.
+     */
+    private static final class KeyBinding {
+        private final Object owner;
+        private int activeJobs = 0;
+
+        public KeyBinding(Object owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Capacity and rejection policy of the queue of a single priority.
+     */
+    private static final class QueueLimit {
+        private final int capacity;
+        private final RejectionPolicy policy;
+        private final int timeout;
+
+        public QueueLimit(int capacity, RejectionPolicy policy, int timeout) {
+            this.capacity = capacity;
+            this.policy = policy;
+            this.timeout = timeout;
+        }
     }
 
     private static final String LOG_TAG = "DESSERT -> TelnetScheduler";
 
-    private static final String COMMAND_ENABLE = "enable";
-    private static final String COMMAND_CONFIG = "configure terminal";
-    private static final String COMMAND_DISABLE = "disable";
-    private static final String COMMAND_EXIT = "exit";
-    private static final String COMMAND_LOGOUT = "logout";
     private static final String COMMAND_SHUTDOWN = "shutdown";
 
     private static final int DEFAULT_CONNECTION_PORT = -1;
-
-    private Pattern PROMPT_PATTERN = Pattern.compile("^localhost:[0-9a-zA-z]{1,4}(>|#|\\(config\\)#)");
+    static final int MAX_PIPELINE_DEPTH = 16;
+    private static final int MAX_MODE_SKIPS = 8;
+    private static final int DEFAULT_COMMAND_TIMEOUT = 10000;
+    private static final int DEFAULT_JOB_TIMEOUT = 60000;
+    private static final int DEFAULT_AGING_INTERVAL = 5000;
+    private static final int DEFAULT_MAX_QUEUE_WAIT = 30000;
+    private static final int STATS_INTERVAL = 1000;
+    private static final int MIN_RECONNECT_DELAY = 250;
+    private static final int MAX_RECONNECT_DELAY = 8000;
+    private static final int MAX_RETRIES = 5;
+    private static final int DEFAULT_KEEP_ALIVE_INTERVAL = 0;
+
+    // states of a job handle
+    private static final int JOB_QUEUED = 0;
+    private static final int JOB_RUNNING = 1;
+    private static final int JOB_STOPPING = 2;
+    private static final int JOB_DONE = 3;
+    private static final int JOB_STOPPED = 4;
+    private static final int JOB_CANCELLED = 5;
 
     private int port = DEFAULT_CONNECTION_PORT;
 
     /**
-     * flag indicates that the connection details have changed and any further
-     * de.fuberlin.dessert.telnet.jobs must be processed on the new connection
+     * generation of the connection details; incremented whenever the details
+     * have changed and any further de.fuberlin.dessert.telnet.jobs must be
+     * processed on the new connection
      */
-    private boolean connectionDetailsChanged = false;
+    private int connectionGeneration = 0;
+
+    /** health of the connections; number of connects failed in a row and the earliest time to try again */
+    private int failedConnects = 0;
+    private long nextConnectTime = 0;
+    private Timer keepAliveTimer = null;
 
     /**
-     * Internal queue and lock object for the scheduler
+     * Internal queues of the scheduler; one FIFO queue per priority
      */
-    private final PriorityQueue<JobWrapper> queue = new PriorityQueue<JobWrapper>();
-    private int lastJobID = 0;
-
-    private final WorkerThread workerThread;
-    private boolean isRunning = false;
+    private final List<ConcurrentLinkedQueue<JobWrapper>> queues;
+    private final AtomicIntegerArray queueSizes = new AtomicIntegerArray(Priority.values().length);
+    private final AtomicInteger lastJobID = new AtomicInteger();
+    private final AtomicReferenceArray<QueueLimit> queueLimits = new AtomicReferenceArray<QueueLimit>(Priority.values().length);
+    private final AtomicLongArray rejectedJobs = new AtomicLongArray(Priority.values().length);
+
+    // producers waiting for room in a full queue; notified via the monitor of the lock
+    private final Object capacityLock = new Object();
+    private final AtomicInteger blockedProducers = new AtomicInteger();
+
+    /** incremented whenever a job might have become available; lets a session check for missed wake ups */
+    private final AtomicInteger queueVersion = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Thread> parkedThreads = new ConcurrentLinkedQueue<Thread>();
+
+    private final int sessionCount;
+    private volatile boolean isRunning = false;
+    private volatile boolean pipelined = false;
+    private volatile int commandTimeout = DEFAULT_COMMAND_TIMEOUT;
+    private volatile int jobTimeout = DEFAULT_JOB_TIMEOUT;
+    private volatile int agingInterval = DEFAULT_AGING_INTERVAL;
+    private volatile int maxQueueWait = DEFAULT_MAX_QUEUE_WAIT;
+    private volatile int keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+    private volatile TelnetCommandMode warmMode = null;
+    private volatile long lastActivity = 0;
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final TimeHistogram[] waitTimeHistograms;
+    private final TimeHistogram[] executionTimeHistograms;
+    private final TelnetCounters counters = new TelnetCounters();
+    private final List<SchedulerStatsEventListener> statsListeners = new CopyOnWriteArrayList<SchedulerStatsEventListener>();
+    private Timer statsTimer = null;
+    private volatile TelnetSchedulerStats lastStats = null;
+    private volatile boolean sessionAffinity = true;
+    private volatile boolean modeAffinity = true;
+    private final AtomicLong modeSwitchesSaved = new AtomicLong();
+    private final Map<Object, KeyBinding> keyBindings = new HashMap<Object, KeyBinding>();
+    private final ConcurrentMap<Object, CoalescedTelnetJob> coalescedJobs = new ConcurrentHashMap<Object, CoalescedTelnetJob>();
+    private final AtomicLong coalescedJobCount = new AtomicLong();
+    private final TelnetResultCache resultCache = new TelnetResultCache();
+    private final TelnetTranscript transcript = new TelnetTranscript();
+    private final TelnetCapture capture = new TelnetCapture();
+
+    // monitor objects; both are only held for in-memory work
+    private final Object connectionLock = new Object();
+    private final Object selectionLock = new Object(); // taken by the sessions only
 
-    private Socket socket = null;
-    private InputStream incomingData;
-    private OutputStream outgoingData;
-    private TelnetCommandMode currentMode;
-
-    // monitor objects
-    private Object queueLock = new Object();
-    private Object socketLock = new Object();
+    /**
+     * Creates a scheduler that runs <code>sessions</code> parallel sessions on
+     * the telnet server using the given <code>engine</code>.
+     * 
+     * @param engine the engine to drive the sessions
+     * @param sessions number of sessions to use; at least one session is used
+     * @return the new scheduler; must be started by {@link #startScheduler()}
+     */
+    public static TelnetScheduler createScheduler(Engine engine, int sessions) {
+        switch (engine) {
+        case BLOCKING:
+            return new BlockingTelnetScheduler(sessions);
+        case SELECTOR:
+            return new SelectorTelnetScheduler(sessions);
+        default:
+            throw new IllegalArgumentException("Got unsupported engine " + engine);
+        }
+    }
 
-    public TelnetScheduler() {
-        this.workerThread = new WorkerThread();
-        this.workerThread.setDaemon(true);
+    TelnetScheduler(int sessions) {
+        this.sessionCount = Math.max(1, sessions);
+        this.queues = new ArrayList<ConcurrentLinkedQueue<JobWrapper>>();
+        this.waitTimeHistograms = new TimeHistogram[Priority.values().length];
+        this.executionTimeHistograms = new TimeHistogram[Priority.values().length];
+        for (int i = 0; i < Priority.values().length; i++) {
+            this.queues.add(new ConcurrentLinkedQueue<JobWrapper>());
+            this.waitTimeHistograms[i] = new TimeHistogram();
+            this.executionTimeHistograms[i] = new TimeHistogram();
+        }
     }
 
     /**
      * Enforces a disconnect to the telnet server and purges the queue.
      * <p>
-     * The currently executed job will be interrupted and the onError handler
+     * The currently executed jobs will be interrupted and the onError handler
      * will be called. Any queued job will be removed from the queue and their
      * onAbort handler will be called.
      */
@@ -229,14 +551,71 @@ public class TelnetScheduler {
         resetSchedulerImpl(false);
     }
 
-    public void enqueueJob(TelnetJob job) {
-        enqueueJob(job, Priority.DEFAULT);
+    public TelnetJobHandle enqueueJob(TelnetJob job) {
+        return enqueueJob(job, Priority.DEFAULT);
     }
 
-    public void enqueueJob(TelnetJob job, Priority priority) {
-        synchronized (queueLock) {
-            queue.offer(new JobWrapper(job, priority, ++lastJobID));
-            queueLock.notifyAll();
+    /**
+     * Queues the given <code>job</code> with the given <code>priority</code>.
+     * 
+     * @param job the job to queue
+     * @param priority the priority to queue the job with
+     * @return handle to cancel the job; already cancelled if the job was
+     *         rejected
+     */
+    public TelnetJobHandle enqueueJob(TelnetJob job, Priority priority) {
+        Object coalescingKey = null;
+        if (job instanceof CoalescableTelnetJob) {
+            coalescingKey = ((CoalescableTelnetJob) job).getCoalescingKey();
+        }
+
+        if (coalescingKey == null) {
+            if (!reserveSlot(job, priority)) {
+                return new JobHandle(JOB_CANCELLED);
+            }
+            JobWrapper wrapper = createWrapper(job, priority);
+            offerReservedJob(wrapper);
+            return wrapper.handle;
+        }
+
+        while (true) {
+            // attach to an equal job that is queued or running
+            CoalescedTelnetJob group = coalescedJobs.get(coalescingKey);
+            TelnetJobHandle memberHandle = group == null ? null : group.join(job);
+            if (memberHandle != null) {
+                coalescedJobCount.incrementAndGet();
+
+                // take over the higher priority if the group is still queued
+                boolean moved = false;
+                synchronized (group) {
+                    JobWrapper wrapper = group.wrapper;
+                    if (priority.ordinal() < wrapper.priority.ordinal() && wrapper.handle.isQueued()
+                            && getQueue(wrapper.priority).remove(wrapper)) {
+                        decrementQueueSize(wrapper.priority);
+                        group.wrapper = new JobWrapper(group, priority, wrapper.id, wrapper.enqueueTime, wrapper.handle);
+                        getQueue(priority).offer(group.wrapper);
+                        queueSizes.incrementAndGet(priority.ordinal());
+                        moved = true;
+                    }
+                }
+                if (moved) {
+                    signalQueueChanged();
+                }
+                return memberHandle;
+            }
+
+            // start a new group unless another thread was faster; the room is reserved before others can join it
+            if (!reserveSlot(job, priority)) {
+                return new JobHandle(JOB_CANCELLED);
+            }
+            CoalescedTelnetJob newGroup = new CoalescedTelnetJob(this, coalescingKey, job);
+            newGroup.wrapper = createWrapper(newGroup, priority);
+            if (group == null ? coalescedJobs.putIfAbsent(coalescingKey, newGroup) == null : coalescedJobs.replace(
+                    coalescingKey, group, newGroup)) {
+                offerReservedJob(newGroup.wrapper);
+                return newGroup.getLeaderHandle();
+            }
+            decrementQueueSize(priority);
         }
     }
 
@@ -244,11 +623,132 @@ public class TelnetScheduler {
         enqueueJob(new SingleCommandTelnetJob(COMMAND_SHUTDOWN, TelnetCommandMode.PRIVILEGED), priority);
     }
 
+    /**
+     * @return number of commands whose result was taken from the cache
+     */
+    public long getCacheHits() {
+        return resultCache.getHits();
+    }
+
+    /**
+     * @return number of cacheable commands that had to be sent because there
+     *         was no valid result in the cache
+     */
+    public long getCacheMisses() {
+        return resultCache.getMisses();
+    }
+
+    /**
+     * @return number of jobs that were attached to an equal job instead of
+     *         being queued on their own (see {@link CoalescableTelnetJob})
+     */
+    public long getCoalescedJobCount() {
+        return coalescedJobCount.get();
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return histogram of the time from taking a job of the given priority
+     *         out of the queue until it was done
+     */
+    public TimeHistogram getExecutionTimeHistogram(Priority priority) {
+        return executionTimeHistograms[priority.ordinal()];
+    }
+
+    /**
+     * @return number of jobs that were executed ahead of a job of the same
+     *         priority that would have needed a mode switch
+     */
+    public long getModeSwitchesSaved() {
+        return modeSwitchesSaved.get();
+    }
+
+    /**
+     * @return number of jobs waiting in the queue; jobs currently executed are
+     *         not counted
+     */
+    public int getQueueSize() {
+        int result = 0;
+        for (Priority priority : Priority.values()) {
+            result += getQueueSize(priority);
+        }
+        return result;
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return number of jobs of the given priority waiting in the queue
+     */
+    public int getQueueSize(Priority priority) {
+        // may be off for a moment while a job is added or taken
+        return Math.max(0, queueSizes.get(priority.ordinal()));
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return number of jobs of the given priority aborted because the queue
+     *         was full
+     */
+    public long getRejectedJobCount(Priority priority) {
+        return rejectedJobs.get(priority.ordinal());
+    }
+
+    /**
+     * @return number of parallel sessions used by this scheduler
+     */
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Takes a snapshot of the metrics of this scheduler. The rate of commands
+     * is measured since the previous snapshot, which might have been taken
+     * for a registered listener.
+     * 
+     * @return the current metrics
+     */
+    public TelnetSchedulerStats getStats() {
+        TelnetSchedulerStats result = new TelnetSchedulerStats(this, counters, lastStats);
+        lastStats = result;
+        return result;
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return histogram of the time the jobs of the given priority waited in
+     *         the queue
+     */
+    public TimeHistogram getWaitTimeHistogram(Priority priority) {
+        return waitTimeHistograms[priority.ordinal()];
+    }
+
+    /**
+     * Registers a listener that gets a snapshot of the metrics every second
+     * until it is unregistered. The listener is called on a background
+     * thread.
+     * 
+     * @param listener the listener to register
+     */
+    public void registerStatsListener(SchedulerStatsEventListener listener) {
+        statsListeners.add(listener);
+        synchronized (statsListeners) {
+            if (statsTimer == null) {
+                statsTimer = new Timer("TelnetScheduler-StatsTimer", true);
+                statsTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        signalStatsUpdated();
+                    }
+                }, 0, STATS_INTERVAL);
+            }
+        }
+    }
+
     /**
      * Enforces a disconnect to the telnet server, purges the queue and resets
      * the connection details.
      * <p>
-     * The currently executed job will be interrupted and the onError handler
+     * The currently executed jobs will be interrupted and the onError handler
      * will be called. Any queued job will be removed from the queue and their
      * onAbort handler will be called.
      * <p>
@@ -258,297 +758,879 @@ public class TelnetScheduler {
         resetSchedulerImpl(true);
     }
 
+    /**
+     * Sets the time after which a waiting job is treated as if it was queued
+     * with the next higher priority. The job is raised again after each
+     * further interval until it reaches {@link Priority#HIGHEST}.
+     * 
+     * @param agingInterval interval in milliseconds; 0 to disable the aging
+     */
+    public void setAgingInterval(int agingInterval) {
+        this.agingInterval = Math.max(0, agingInterval);
+    }
+
+    /**
+     * Starts or stops capturing the raw bytes exchanged by the sessions to the
+     * given file. A capture can be replayed by the <code>ReplayServer</code>
+     * of the <code>tools</code> source tree.
+     * Sessions that are already connected are captured from the next command
+     * on; reconnect them by {@link #disconnect()} to capture their greeting.
+     * 
+     * @param file file to write the capture to; <code>null</code> to stop
+     *            capturing
+     * @param maxSize size in bytes after which capturing stops
+     */
+    public void setCaptureFile(File file, int maxSize) {
+        if (file == null) {
+            capture.close();
+        } else {
+            capture.open(file, maxSize);
+        }
+    }
+
+    /**
+     * Sets the time to wait for the result of a single command. The timeout is
+     * also used when opening a session.
+     * 
+     * @param commandTimeout timeout in milliseconds; 0 to wait forever
+     */
+    public void setCommandTimeout(int commandTimeout) {
+        this.commandTimeout = Math.max(0, commandTimeout);
+    }
+
+    /**
+     * Sets the connection details. If a warm mode is set the sessions are
+     * opened right away.
+     * 
+     * @param port port of the CLI telnet interface
+     */
     public void setConnectionDetails(int port) {
-        synchronized (queueLock) {
+        synchronized (connectionLock) {
+            resultCache.invalidate();
             this.port = port;
-            this.connectionDetailsChanged = true;
+            this.connectionGeneration++;
+            resetConnectionHealth();
         }
+        warmUpSessions();
     }
 
-    public void startScheduler() {
-        this.workerThread.start();
+    /**
+     * Sets the time a job may take from sending its first command until the
+     * result of the last command is read.
+     * 
+     * @param jobTimeout timeout in milliseconds; 0 for no limit
+     */
+    public void setJobTimeout(int jobTimeout) {
+        this.jobTimeout = Math.max(0, jobTimeout);
     }
 
-    private void changeCommandMode(EnumSet<TelnetCommandMode> modes) throws IOException {
-        if (modes.contains(currentMode)) {
-            Log.w(LOG_TAG, "Got called with the current mode... this should not happen");
-            return;
+    /**
+     * Sets the interval to keep idle sessions alive. If no job was run for a
+     * whole interval an empty command line is sent on every session. It does
+     * nothing on the telnet server but lets the server know the session is
+     * still in use.
+     * 
+     * @param keepAliveInterval interval in milliseconds; 0 to disable the
+     *            keep-alive
+     */
+    public void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = Math.max(0, keepAliveInterval);
+        if (isRunning) {
+            scheduleKeepAlive();
         }
+    }
 
-        // we need at most two command switches
-        String firstCommmand = null;
-        String secondCommmand = null;
+    /**
+     * Sets the time a job may wait in the queue. A job that waited longer is
+     * executed by the next idle session before any other job.
+     * 
+     * @param maxQueueWait time in milliseconds; 0 for no limit
+     */
+    public void setMaxQueueWait(int maxQueueWait) {
+        this.maxQueueWait = Math.max(0, maxQueueWait);
+    }
 
-        // decide which commands to call
-        switch (currentMode) {
-        case DEFAULT:
-            firstCommmand = COMMAND_ENABLE;
-            if (!modes.contains(TelnetCommandMode.PRIVILEGED)) {
-                secondCommmand = COMMAND_CONFIG;
-            }
-            break;
-        case PRIVILEGED:
-            if (modes.contains(TelnetCommandMode.DEFAULT)) {
-                firstCommmand = COMMAND_DISABLE;
-            } else {
-                firstCommmand = COMMAND_CONFIG;
-            }
-            break;
-        case CONFIG:
-            firstCommmand = COMMAND_EXIT;
-            if (!modes.contains(TelnetCommandMode.PRIVILEGED)) {
-                secondCommmand = COMMAND_DISABLE;
+    /**
+     * Enables or disables the reordering of jobs by their command mode.
+     * <p>
+     * If enabled, a session executes a job that can be run in its current
+     * {@link TelnetCommandMode} before any other job of the same priority that
+     * would need a mode switch. Jobs with the same ordering key (see
+     * {@link OrderedTelnetJob}) are never reordered. The reordering is enabled
+     * by default.
+     * 
+     * @param modeAffinity <code>true</code> to prefer jobs valid in the current
+     *            mode
+     */
+    public void setModeAffinity(boolean modeAffinity) {
+        this.modeAffinity = modeAffinity;
+    }
+
+    /**
+     * Enables or disables the pipelined execution of commands.
+     * <p>
+     * In pipelined mode up to {@value #MAX_PIPELINE_DEPTH} consecutive commands
+     * of a job that share the current {@link TelnetCommandMode} are written to
+     * the connection in one go. The results are still delivered to the job one
+     * by one and in order. A command that changes the mode of the telnet
+     * server on its own should not be used in pipelined mode.
+     * 
+     * @param pipelined <code>true</code> to send the commands of a job in
+     *            batches
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Limits the number of jobs waiting in the queue of the given priority.
+     * Jobs that were queued already are kept; jobs queued again after their
+     * connection was lost are always taken.
+     * <p>
+     * The producer waits for room only with {@link RejectionPolicy#BLOCK};
+     * this should not be used for a priority that is enqueued from the UI
+     * thread.
+     * 
+     * @param priority the priority to limit
+     * @param capacity maximum number of waiting jobs; 0 for no limit
+     * @param policy what to do with a job that does not fit
+     * @param timeout time in milliseconds to wait for room with
+     *            {@link RejectionPolicy#BLOCK}; ignored otherwise
+     */
+    public void setQueueCapacity(Priority priority, int capacity, RejectionPolicy policy, int timeout) {
+        queueLimits.set(priority.ordinal(), capacity > 0 ? new QueueLimit(capacity, policy, Math.max(0, timeout)) : null);
+    }
+
+    /**
+     * Enables or disables the session affinity of ordered jobs.
+     * <p>
+     * If enabled, an {@link OrderedTelnetJob} is only executed on the session
+     * that is currently executing another job with the same ordering key. This
+     * way a job never overtakes an earlier queued job it depends on. If
+     * disabled, every job is executed by the next idle session. The affinity is
+     * enabled by default.
+     * 
+     * @param sessionAffinity <code>true</code> to keep ordered jobs on the
+     *            same session
+     */
+    public void setSessionAffinity(boolean sessionAffinity) {
+        this.sessionAffinity = sessionAffinity;
+        signalQueueChanged();
+    }
+
+    /**
+     * Sets the mode the sessions are brought into as soon as the connection
+     * details are set. This should be the mode most of the first jobs need.
+     * 
+     * @param warmMode the mode to warm up the sessions in; <code>null</code>
+     *            to open the sessions only when the first job is executed
+     */
+    public void setWarmMode(TelnetCommandMode warmMode) {
+        this.warmMode = warmMode;
+    }
+
+    /**
+     * Starts or stops recording every command and its result to the given
+     * file. The file is rolled once it reaches the given size.
+     * 
+     * @param file file to append the transcript to; <code>null</code> to stop
+     *            recording
+     * @param maxSize size in bytes the file may grow to
+     */
+    public void setTranscriptFile(File file, int maxSize) {
+        if (file == null) {
+            transcript.close();
+        } else {
+            transcript.open(file, maxSize);
+        }
+    }
+
+    public void startScheduler() {
+        isRunning = true;
+        startSessions();
+        scheduleKeepAlive();
+        warmUpSessions();
+    }
+
+    /**
+     * Unregisters a listener registered by
+     * {@link #registerStatsListener(SchedulerStatsEventListener)}.
+     * 
+     * @param listener the listener to unregister
+     */
+    public void unregisterStatsListener(SchedulerStatsEventListener listener) {
+        statsListeners.remove(listener);
+        synchronized (statsListeners) {
+            if (statsListeners.isEmpty() && statsTimer != null) {
+                statsTimer.cancel();
+                statsTimer = null;
             }
-            break;
-        default:
-            throw new IllegalArgumentException("Got unsupported telnet command mode " + currentMode);
         }
+    }
 
-        if (firstCommmand != null) {
-            sendCommand(firstCommmand);
-            readUntilPrompt();
+    /**
+     * Closes all sessions. Running jobs must be failed by the engine. May be
+     * called by any thread while jobs are enqueued and taken.
+     */
+    abstract void closeSessions();
+
+    int getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     * @return the traffic counters to be updated by all sessions
+     */
+    TelnetCounters getCounters() {
+        return counters;
+    }
+
+    int getConnectionGeneration() {
+        synchronized (connectionLock) {
+            return connectionGeneration;
         }
+    }
+
+    /**
+     * @return the cache of the getter results shared by all sessions
+     */
+    TelnetResultCache getResultCache() {
+        return resultCache;
+    }
+
+    int getJobTimeout() {
+        return jobTimeout;
+    }
 
-        if (secondCommmand != null) {
-            sendCommand(secondCommmand);
-            readUntilPrompt();
+    /**
+     * @return the objects the engine passes as owner to
+     *         {@link #takeNextJob(Object, TelnetCommandMode, boolean)}, one
+     *         for each session
+     */
+    abstract Object[] getSessionOwners();
+
+    /**
+     * @return number of commands of a job that may be sent at once
+     */
+    int getPipelineDepth() {
+        return pipelined ? MAX_PIPELINE_DEPTH : 1;
+    }
+
+    int getPort() {
+        synchronized (connectionLock) {
+            return port;
         }
     }
 
-    private void cutConnection() {
-        synchronized (socketLock) {
-            if (socket != null && socket.isConnected() && !socket.isOutputShutdown()) {
-                try {
-                    sendCommand(COMMAND_LOGOUT);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Error while disconnecting from telnet server", e);
-                }
-            }
-            Utils.safelyClose(socket);
-        }
-    }
-
-    private boolean ensureConnection() {
-        synchronized (socketLock) {
-            // stop active connection if details are changed
-            if (connectionDetailsChanged) {
-                // disconnect here
-                cutConnection();
-                socket = null;
-                incomingData = null;
-                outgoingData = null;
-                currentMode = null;
-                connectionDetailsChanged = false;
-            }
-
-            // start connection if none is running
-            if (socket == null) {
-                try {
-                    socket = new Socket("localhost", port);
-                    incomingData = socket.getInputStream();
-                    outgoingData = socket.getOutputStream();
-                    readUntilPrompt();
-                } catch (UnknownHostException e) {
-                    Log.e(LOG_TAG, "Host not found", e);
-                } catch (IOException e) {
-                    Log.e(LOG_TAG, "Error while creating telnet connection", e);
-                }
-            }
+    /**
+     * @return time in milliseconds to wait before the next connection may be
+     *         opened; 0 if it may be opened right away
+     */
+    long getReconnectDelay() {
+        synchronized (connectionLock) {
+            return Math.max(0, nextConnectTime - System.currentTimeMillis());
         }
+    }
 
-        return socket != null;
+    /**
+     * @return the capture shared by all sessions
+     */
+    TelnetCapture getCapture() {
+        return capture;
     }
 
-    private boolean executeJob(TelnetJob job) {
-        signalJobStart(job);
+    /**
+     * @return the transcript shared by all sessions
+     */
+    TelnetTranscript getTranscript() {
+        return transcript;
+    }
 
-        // iterate over the job and stuff
-        while (job.hasMoreCommands()) {
-            TelnetCommand command = job.nextCommand();
+    boolean isRunning() {
+        return isRunning;
+    }
 
-            try {
-                // 1. enter the correct telnet mode            
-                if (!command.isModeValid(currentMode)) {
-                    changeCommandMode(command.getModes());
-                    if (!command.isModeValid(currentMode)) {
-                        throw new IllegalStateException("Still in wrong mode after switching modes");
-                    }
-                }
+    /**
+     * Records a failed attempt to open a connection. The next attempt is
+     * delayed twice as long as the last one.
+     */
+    void onConnectFailed() {
+        synchronized (connectionLock) {
+            long delay = Math.min(MAX_RECONNECT_DELAY, (long) MIN_RECONNECT_DELAY << Math.min(failedConnects, 16));
+            failedConnects++;
+            nextConnectTime = System.currentTimeMillis() + delay;
+            Log.w(LOG_TAG, "Connecting failed " + failedConnects + " times in a row; next try in " + delay + "ms");
+        }
+    }
+
+    /**
+     * Records a successfully opened connection. Further connections may be
+     * opened right away.
+     */
+    void onConnectSucceeded() {
+        synchronized (connectionLock) {
+            resetConnectionHealth();
+        }
+    }
 
-                // 2. send the command
-                sendCommand(command.getCommand());
+    /**
+     * Called whenever a job might have become available. Sessions waiting in
+     * {@link #takeNextJob(Object, TelnetCommandMode, boolean)} are woken up on
+     * their own; engines waiting for something else can override this.
+     */
+    void onQueueChanged() {
+        // nothing to do by default
+    }
 
-                // 3. read the output until the prompt
-                List<String> commandResult = readUntilPrompt();
+    /**
+     * Releases the ordering key of a finished job so that other sessions can
+     * pick up the jobs with the same key.
+     * 
+     * @param owner the session that executed the job
+     * @param wrapper the finished job
+     */
+    void releaseJob(Object owner, JobWrapper wrapper) {
+        wrapper.handle.finish();
+        activeJobs.decrementAndGet();
+        lastActivity = System.currentTimeMillis();
+        getExecutionTimeHistogram(wrapper.priority).record(lastActivity - wrapper.startTime);
+
+        Collection<?> keys = wrapper.getOrderingKeys();
+        if (keys.isEmpty()) {
+            return;
+        }
 
-                // 4. signal the job command success and the result
-                signalJobResult(job, commandResult.toArray(new String[commandResult.size()]), command);
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "Error while executing command " + command.getCommand() + " @ " + command.getModes(), e);
-                signalJobError(job);
-                return false;
+        boolean released = false;
+        synchronized (selectionLock) {
+            for (Object key : keys) {
+                KeyBinding binding = keyBindings.get(key);
+                if (binding != null && binding.owner == owner && --binding.activeJobs <= 0) {
+                    keyBindings.remove(key);
+                    released = true;
+                }
             }
         }
 
-        signalJobCompleted(job);
+        if (released) {
+            signalQueueChanged();
+        }
+    }
 
-        return true;
+    /**
+     * Removes a group of coalesced jobs that does not take any more jobs.
+     * 
+     * @param group the closed group
+     */
+    void removeCoalescedJob(CoalescedTelnetJob group) {
+        coalescedJobs.remove(group.getCoalescingKey(), group);
     }
 
-    private TelnetJob getNextJob() {
-        TelnetJob result = null;
-        synchronized (queueLock) {
-            // wait for a job
-            while (queue.isEmpty()) {
-                try {
-                    queueLock.wait();
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
+    /**
+     * Handles a job whose session failed. The job must have been released
+     * already.
+     * <p>
+     * If the connection was lost and the job is retryable it is rewound and
+     * queued again. Otherwise it is failed by its onError handler if it was
+     * started or aborted by its onAborted handler if not. A cancelled job is
+     * always aborted.
+     * 
+     * @param wrapper the job whose session failed
+     * @param started <code>true</code> if the job was started on the session
+     * @param connectionLost <code>true</code> if the connection could not be
+     *            opened or broke; <code>false</code> if the job failed
+     *            otherwise, e.g. by a timeout
+     */
+    void retryOrFailJob(JobWrapper wrapper, boolean started, boolean connectionLost) {
+        TelnetJob job = wrapper.getJob();
+        if (wrapper.handle.isCancelled()) {
+            signalJobAborted(job);
+            return;
+        }
 
-            // get job from queue
-            JobWrapper wrapper = queue.poll();
-            if (wrapper != null) {
-                result = wrapper.job;
+        if (connectionLost && isRetryable(wrapper) && wrapper.retries < MAX_RETRIES && isRunning) {
+            try {
+                if (started) {
+                    ((RetryableTelnetJob) job).rewind();
+                }
+                wrapper.retries++;
+                wrapper.handle.requeue();
+                offerJob(wrapper);
+                return;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Caught exception in rewind callback", e);
             }
         }
 
-        return result;
+        if (started) {
+            signalJobError(job);
+        } else {
+            signalJobAborted(job);
+        }
     }
 
     /**
-     * Read from the current connection
+     * Starts the threads of the engine.
+     */
+    abstract void startSessions();
+
+    /**
+     * Removes the next job the given session is allowed to execute from the
+     * queue.
+     * <p>
+     * A waiting thread is parked until a job is enqueued or an ordering key is
+     * released.
      * 
-     * @return the list of lines read as result from the last command run
-     * @throws IOException
+     * @param owner the session asking for a job
+     * @param currentMode the mode the session is in or <code>null</code> if
+     *            it is not connected
+     * @param wait <code>true</code> to wait for a job if there is none
+     * @return the next job or <code>null</code> if there is none or the
+     *         waiting thread was interrupted
      */
-    private List<String> readUntilPrompt() throws IOException {
-        List<String> result = new ArrayList<String>();
+    JobWrapper takeNextJob(Object owner, TelnetCommandMode currentMode, boolean wait) {
+        Thread thread = Thread.currentThread();
+        while (true) {
+            int version = queueVersion.get();
+            JobWrapper result = claimNextJob(owner, currentMode);
+            if (result != null || !wait) {
+                return result;
+            }
 
-        synchronized (socketLock) {
-            if (socket == null || socket.isClosed() || !socket.isConnected()) {
-                throw new IllegalStateException("Must be connected to a telnet server");
+            // any change after reading the version unparks the thread or is seen here
+            parkedThreads.add(thread);
+            if (queueVersion.get() == version) {
+                LockSupport.park(this);
             }
+            parkedThreads.remove(thread);
 
-            if (socket.isInputShutdown()) {
-                throw new IllegalStateException("Incoming stream must not be closedo");
+            if (Thread.interrupted()) {
+                return null;
             }
+        }
+    }
 
-            // read loop.. data comes as 8bit values containing 7bit ascii with a leading 0 bit     
-            boolean discardedPreviousPrompt = false; // first line is always the last prompt; we discard this one
-            boolean gotCR = false; // last character was a CR
-            boolean foundPrompt = false;
-            StringBuilder sb = new StringBuilder(128);
-            for (int b = incomingData.read(); b != -1 && !foundPrompt; b = incomingData.read()) {
-                // handle CR without the following LF
-                if (gotCR && b != 0x0A) {
-                    sb.append((char) 0x0D);
-                    gotCR = false;
+    /**
+     * Waits until there is room in the queue of the given priority and
+     * reserves it.
+     * 
+     * @return <code>false</code> if the deadline passed or the thread was
+     *         interrupted
+     */
+    private boolean awaitSlot(Priority priority, int capacity, long deadline) {
+        synchronized (capacityLock) {
+            blockedProducers.incrementAndGet();
+            try {
+                while (!tryReserveSlot(priority, capacity)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    capacityLock.wait(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                blockedProducers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Looks for the next job of the given session and removes it from its
+     * queue.
+     */
+    private JobWrapper claimNextJob(Object owner, TelnetCommandMode currentMode) {
+        synchronized (selectionLock) {
+            List<JobWrapper> passedJobs = new ArrayList<JobWrapper>();
+            JobWrapper result;
+            while ((result = findNextJob(owner, currentMode, passedJobs)) != null) {
+                // the job might have been aborted, cancelled or moved to another queue in the meantime
+                if (!getQueue(result.priority).remove(result) || !result.handle.start()) {
+                    continue;
+                }
+                decrementQueueSize(result.priority);
+                result.startTime = System.currentTimeMillis();
+                activeJobs.incrementAndGet();
+                getWaitTimeHistogram(result.priority).record(result.startTime - result.enqueueTime);
+
+                // only now the jobs were really passed over; the first one is the head of the queue
+                if (!passedJobs.isEmpty()) {
+                    for (JobWrapper passedJob : passedJobs) {
+                        passedJob.modeSkips++;
+                    }
+                    if (passedJobs.get(0).needsModeSwitch(currentMode)) {
+                        modeSwitchesSaved.incrementAndGet();
+                    }
                 }
 
-                switch (b) {
-                case 0x0D:
-                    // must wait for the next character because this can be a line ending CR LF
-                    gotCR = true;
-                    break;
-                case 0x0A:
-                    // it's either an encoded line ending or just a LF as is
-                    if (gotCR) {
-                        if (discardedPreviousPrompt) {
-                            result.add(sb.toString());
-                        } else {
-                            discardedPreviousPrompt = true;
+                if (sessionAffinity) {
+                    for (Object key : result.getOrderingKeys()) {
+                        KeyBinding binding = keyBindings.get(key);
+                        if (binding == null) {
+                            binding = new KeyBinding(owner);
+                            keyBindings.put(key, binding);
                         }
-                        sb.setLength(0);
-                        gotCR = false;
-                    } else {
-                        sb.append((char) 0x0A);
+                        binding.activeJobs++;
                     }
-                    break;
-                case '>':
-                case '#':
-                    sb.append((char) b);
-
-                    // check if this is a prompt
-                    Matcher matcher = PROMPT_PATTERN.matcher(sb.toString());
-                    if (matcher.matches()) {
-                        // this is the prompt; now set the new mode
-                        foundPrompt = true;
-
-                        String modeString = matcher.group(1);
-                        if (">".equals(modeString)) {
-                            currentMode = TelnetCommandMode.DEFAULT;
-                        } else if ("#".equals(modeString)) {
-                            currentMode = TelnetCommandMode.PRIVILEGED;
-                        } else if ("(config)#".equals(modeString)) {
-                            currentMode = TelnetCommandMode.CONFIG;
-                        } else {
-                            Log.e(LOG_TAG, "Found unsupported prompt: " + sb.toString());
+                }
+                return result;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Looks for the job with the highest effective priority that is not bound
+     * to another session. If the mode affinity is enabled a later job of the
+     * same queue that is valid in the current mode of the session may be
+     * chosen instead.
+     * Must be called while holding the selection lock.
+     * 
+     * @param passedJobs filled with the jobs the returned job overtakes
+     *            because of the mode affinity, starting with the head of the
+     *            queue
+     */
+    private JobWrapper findNextJob(Object owner, TelnetCommandMode currentMode, List<JobWrapper> passedJobs) {
+        passedJobs.clear();
+
+        // the first job a session may take in each queue is the one that waited longest; compare their effective priorities
+        long now = System.currentTimeMillis();
+        ConcurrentLinkedQueue<JobWrapper> bestQueue = null;
+        JobWrapper head = null;
+        int headPriority = Integer.MAX_VALUE;
+        Set<Object> skippedKeys = null; // keys of the jobs skipped so far; no later job may overtake them
+        for (ConcurrentLinkedQueue<JobWrapper> queue : queues) {
+            for (Iterator<JobWrapper> iterator = queue.iterator(); iterator.hasNext();) {
+                JobWrapper wrapper = iterator.next();
+                if (!wrapper.handle.isQueued()) {
+                    iterator.remove(); // cancelled; its room was freed already
+                    continue;
+                }
+                Collection<?> keys = wrapper.getOrderingKeys();
+                if (!isAvailableFor(owner, wrapper) || containsAny(skippedKeys, keys)) {
+                    // a job with several keys might be held back by one of them only; keep the others waiting too
+                    if (!keys.isEmpty()) {
+                        if (skippedKeys == null) {
+                            skippedKeys = new HashSet<Object>();
                         }
+                        skippedKeys.addAll(keys);
                     }
-                    break;
-                default:
-                    sb.append((char) b);
-                    break;
+                    continue;
+                }
+
+                int effectivePriority = getEffectivePriority(wrapper, now);
+                // on a tie the job that waited longer wins
+                if (effectivePriority < headPriority
+                        || (effectivePriority == headPriority && wrapper.enqueueTime < head.enqueueTime)) {
+                    bestQueue = queue;
+                    head = wrapper;
+                    headPriority = effectivePriority;
                 }
+                break;
             }
         }
 
+        if (head == null) {
+            return null;
+        }
+
+        boolean preferMode = modeAffinity && currentMode != null;
+        if (!preferMode || headPriority < 0 || head.modeSkips >= MAX_MODE_SKIPS || head.isValidIn(currentMode)) {
+            return head;
+        }
+
+        // look for a later job of the same queue that does not need a mode switch; never overtake a job with the same key
+        Set<Object> passedKeys = new HashSet<Object>();
+        boolean passedHead = false;
+        for (JobWrapper wrapper : bestQueue) {
+            Collection<?> keys = wrapper.getOrderingKeys();
+            if (wrapper == head) {
+                passedHead = true;
+            } else if (!wrapper.handle.isQueued()) {
+                continue;
+            } else if (passedHead && wrapper.isValidIn(currentMode) && isAvailableFor(owner, wrapper)
+                    && !containsAny(passedKeys, keys) && !containsAny(skippedKeys, keys)) {
+                return wrapper;
+            }
+
+            if (passedHead) {
+                passedJobs.add(wrapper);
+                passedKeys.addAll(keys);
+            }
+        }
+
+        passedJobs.clear();
+        return head;
+    }
+
+    private JobWrapper createWrapper(TelnetJob job, Priority priority) {
+        return new JobWrapper(job, priority, lastJobID.incrementAndGet(), System.currentTimeMillis(), new JobHandle(
+                JOB_QUEUED));
+    }
+
+    /**
+     * Queues an empty command line valid in the given <code>modes</code> on
+     * every session with the lowest priority. Each command is bound to its
+     * session, so no session can take the command of another one. The
+     * commands are queued regardless of the capacity of the queue.
+     */
+    private void enqueueNoopOnEachSession(EnumSet<TelnetCommandMode> modes) {
+        for (Object owner : getSessionOwners()) {
+            JobWrapper wrapper = createWrapper(new SingleCommandTelnetJob(TelnetSession.COMMAND_NOOP, modes),
+                    Priority.LOWEST);
+            wrapper.boundOwner = owner;
+            offerJob(wrapper);
+        }
+    }
+
+    /**
+     * Counts a job taken out of the queue of the given priority and wakes up
+     * the producers waiting for room.
+     */
+    private void decrementQueueSize(Priority priority) {
+        queueSizes.decrementAndGet(priority.ordinal());
+        if (blockedProducers.get() > 0) {
+            synchronized (capacityLock) {
+                capacityLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the priority the given job is treated with after aging; -1 if
+     *         it exceeded the maximum queue wait
+     */
+    private int getEffectivePriority(JobWrapper wrapper, long now) {
+        long waited = now - wrapper.enqueueTime;
+        if (maxQueueWait > 0 && waited >= maxQueueWait) {
+            return -1;
+        }
+
+        int result = wrapper.priority.ordinal();
+        if (agingInterval > 0) {
+            result -= (int) Math.min(result, waited / agingInterval);
+        }
         return result;
     }
 
-    private void resetSchedulerImpl(boolean resetDetails) {
-        synchronized (queueLock) {
-            // empty queue
-            while (!queue.isEmpty()) {
-                signalJobAborted(queue.poll().job);
+    private ConcurrentLinkedQueue<JobWrapper> getQueue(Priority priority) {
+        return queues.get(priority.ordinal());
+    }
+
+    /**
+     * @return <code>true</code> if the job is not bound to another session
+     *         directly or by its ordering key
+     */
+    private boolean isAvailableFor(Object owner, JobWrapper wrapper) {
+        if (wrapper.boundOwner != null) {
+            return wrapper.boundOwner == owner;
+        }
+        if (!sessionAffinity || keyBindings.isEmpty()) {
+            return true;
+        }
+
+        for (Object key : wrapper.getOrderingKeys()) {
+            KeyBinding binding = keyBindings.get(key);
+            if (binding != null && binding.owner != owner) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            // stop worker thread
-            workerThread.interrupt();
+    /**
+     * Sends an empty command line on every session if no job was run for a
+     * whole keep-alive interval.
+     */
+    private void keepAlive() {
+        int interval = keepAliveInterval;
+        if (interval == 0 || getPort() == DEFAULT_CONNECTION_PORT || getQueueSize() > 0 || activeJobs.get() > 0
+                || System.currentTimeMillis() - lastActivity < interval) {
+            return;
+        }
+
+        enqueueNoopOnEachSession(EnumSet.allOf(TelnetCommandMode.class));
+    }
+
+    /**
+     * Queues the given job regardless of the capacity of its queue.
+     */
+    private void offerJob(JobWrapper wrapper) {
+        queueSizes.incrementAndGet(wrapper.priority.ordinal());
+        offerReservedJob(wrapper);
+    }
+
+    /**
+     * Queues the given job whose room was reserved by
+     * {@link #reserveSlot(TelnetJob, Priority)}.
+     */
+    private void offerReservedJob(JobWrapper wrapper) {
+        getQueue(wrapper.priority).offer(wrapper);
+        signalQueueChanged();
+    }
+
+    /**
+     * Reserves room for a new job in the queue of the given priority as
+     * allowed by its capacity and rejection policy. A rejected job is aborted.
+     * 
+     * @param job the job to be queued
+     * @param priority the priority to queue the job with
+     * @return <code>true</code> if there is room for the job
+     */
+    private boolean reserveSlot(TelnetJob job, Priority priority) {
+        QueueLimit limit = queueLimits.get(priority.ordinal());
+        if (limit == null) {
+            queueSizes.incrementAndGet(priority.ordinal());
+            return true;
+        }
 
-            // cut connection
-            cutConnection();
+        long deadline = System.currentTimeMillis() + limit.timeout;
+        while (true) {
+            if (tryReserveSlot(priority, limit.capacity)) {
+                return true;
+            }
 
+            switch (limit.policy) {
+            case DROP_OLDEST:
+                // the room of the oldest job is handed over to the new one; cancelled jobs have no room left
+                JobWrapper oldest;
+                while ((oldest = getQueue(priority).poll()) != null) {
+                    if (oldest.handle.abort()) {
+                        rejectJob(oldest.job, priority);
+                        return true;
+                    }
+                }
+                break;
+            case BLOCK:
+                if (awaitSlot(priority, limit.capacity, deadline)) {
+                    return true;
+                }
+                rejectJob(job, priority);
+                return false;
+            default:
+                rejectJob(job, priority);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Counts the given job as rejected by the queue of the given priority and
+     * aborts it.
+     */
+    private void rejectJob(TelnetJob job, Priority priority) {
+        rejectedJobs.incrementAndGet(priority.ordinal());
+        Log.w(LOG_TAG, "Queue of priority " + priority + " is full; rejected job " + job);
+        signalJobAborted(job);
+    }
+
+    /**
+     * Lets the next connection be opened right away. Must be called while
+     * holding the connection lock.
+     */
+    private void resetConnectionHealth() {
+        failedConnects = 0;
+        nextConnectTime = 0;
+    }
+
+    private void resetSchedulerImpl(boolean resetDetails) {
+        // empty queue
+        List<JobWrapper> abortedJobs = new ArrayList<JobWrapper>();
+        for (ConcurrentLinkedQueue<JobWrapper> queue : queues) {
+            JobWrapper wrapper;
+            while ((wrapper = queue.poll()) != null) {
+                if (wrapper.handle.abort()) {
+                    decrementQueueSize(wrapper.priority);
+                    abortedJobs.add(wrapper);
+                }
+            }
+        }
+
+        synchronized (connectionLock) {
             if (resetDetails) {
                 this.port = DEFAULT_CONNECTION_PORT;
-                this.connectionDetailsChanged = false; // we don't signal a change until the details are set again
-            } else {
-                this.connectionDetailsChanged = true; // we signal a change but leave the values as is for any further queue item
             }
+            resultCache.invalidate();
+            this.connectionGeneration++; // any further queue item must use a new connection
+            resetConnectionHealth();
+        }
 
-            // notify anyone that might be waiting on the queue
-            queueLock.notifyAll();
+        // cut connections; no lock is held so enqueueing jobs does not wait for the socket I/O
+        closeSessions();
+
+        for (JobWrapper wrapper : abortedJobs) {
+            signalJobAborted(wrapper.job);
         }
+
+        // notify anyone that might be waiting on the queue
+        signalQueueChanged();
     }
 
-    private void sendCommand(String command) throws IOException {
-        synchronized (socketLock) {
-            if (socket == null || socket.isClosed() || !socket.isConnected()) {
-                throw new IllegalStateException("Must be connected to a telnet server");
+    /**
+     * Reserves room in the queue of the given priority if it is not full.
+     */
+    private boolean tryReserveSlot(Priority priority, int capacity) {
+        int index = priority.ordinal();
+        while (true) {
+            int size = queueSizes.get(index);
+            if (size >= capacity) {
+                return false;
+            }
+            if (queueSizes.compareAndSet(index, size, size + 1)) {
+                return true;
             }
+        }
+    }
 
-            if (socket.isOutputShutdown()) {
-                throw new IllegalStateException("Outgoing stream must not be closedo");
+    /**
+     * (Re)starts the timer of the keep-alive with the current interval.
+     */
+    private void scheduleKeepAlive() {
+        synchronized (connectionLock) {
+            if (keepAliveTimer != null) {
+                keepAliveTimer.cancel();
+                keepAliveTimer = null;
             }
 
-            byte[] bytes;
-            try {
-                bytes = command.getBytes("ASCII");
-            } catch (UnsupportedEncodingException e) {
-                Log.e(LOG_TAG, "ASCII encoding is not supported", e);
-                return;
+            int interval = keepAliveInterval;
+            if (interval > 0) {
+                keepAliveTimer = new Timer("TelnetScheduler-KeepAliveTimer", true);
+                keepAliveTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        keepAlive();
+                    }
+                }, interval, interval);
             }
+        }
+    }
 
-            outgoingData.write(bytes);
-            outgoingData.write(0x0D);
-            outgoingData.write(0x0A);
-            outgoingData.flush();
+    /**
+     * Opens every session and brings it into the warm mode by queueing an
+     * empty command line bound to each session. The commands are queued with
+     * the lowest priority, so they never delay any real job.
+     */
+    private void warmUpSessions() {
+        TelnetCommandMode mode = warmMode;
+        if (!isRunning || mode == null || getPort() == DEFAULT_CONNECTION_PORT) {
+            return;
         }
+
+        enqueueNoopOnEachSession(EnumSet.of(mode));
     }
 
-    private void signalJobAborted(TelnetJob job) {
+    /**
+     * @return <code>true</code> if the given job may be queued again after its
+     *         connection was lost
+     */
+    static boolean isRetryable(JobWrapper wrapper) {
+        TelnetJob job = wrapper.getJob();
+        return job instanceof RetryableTelnetJob && ((RetryableTelnetJob) job).isRetryable();
+    }
+
+    static void signalJobAborted(TelnetJob job) {
         try {
             job.onAborted();
         } catch (Exception e) {
@@ -556,7 +1638,7 @@ public class TelnetScheduler {
         }
     }
 
-    private void signalJobCompleted(TelnetJob job) {
+    static void signalJobCompleted(TelnetJob job) {
         try {
             job.onCompleted();
         } catch (Exception e) {
@@ -564,7 +1646,7 @@ public class TelnetScheduler {
         }
     }
 
-    private void signalJobError(TelnetJob job) {
+    static void signalJobError(TelnetJob job) {
         try {
             job.onError();
         } catch (Exception e) {
@@ -572,7 +1654,15 @@ public class TelnetScheduler {
         }
     }
 
-    private void signalJobResult(TelnetJob job, String[] resultValue, TelnetCommand command) {
+    static void signalJobLine(StreamingTelnetJob job, CharSequence line, TelnetCommand command) {
+        try {
+            job.onLine(line, command);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Caught exception in onLine callback", e);
+        }
+    }
+
+    static void signalJobResult(TelnetJob job, String[] resultValue, TelnetCommand command) {
         try {
             job.onResult(resultValue, command);
         } catch (Exception e) {
@@ -580,11 +1670,47 @@ public class TelnetScheduler {
         }
     }
 
-    private void signalJobStart(TelnetJob job) {
+    static void signalJobStart(TelnetJob job) {
         try {
             job.onStart();
         } catch (Exception e) {
             Log.e(LOG_TAG, "Caught exception in onStart callback", e);
         }
     }
+
+    private void signalQueueChanged() {
+        queueVersion.incrementAndGet();
+        for (Thread thread : parkedThreads) {
+            LockSupport.unpark(thread);
+        }
+        onQueueChanged();
+    }
+
+    private void signalStatsUpdated() {
+        TelnetSchedulerStats stats = getStats();
+        for (SchedulerStatsEventListener listener : statsListeners) {
+            try {
+                listener.onStatsUpdated(stats);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Caught exception in onStatsUpdated callback", e);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if any of the given <code>keys</code> is in
+     *         the <code>set</code>; <code>false</code> if the set is
+     *         <code>null</code>
+     */
+    private static boolean containsAny(Set<Object> set, Collection<?> keys) {
+        if (set == null || set.isEmpty()) {
+            return false;
+        }
+        for (Object key : keys) {
+            if (set.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import de.fuberlin.dessert.telnet.TelnetScheduler.Priority;
+
+/**
+ * A snapshot of the metrics of a {@link TelnetScheduler} as returned by
+ * {@link TelnetScheduler#getStats()} or passed to a registered
+ * {@link de.fuberlin.dessert.event.SchedulerStatsEventListener}.
+ * <p>
+ * The counters are totals since the scheduler was created. The rate of
+ * commands is measured since the snapshot taken before this one.
+ */
+public final class TelnetSchedulerStats {
+
+    private final long time;
+    private final int[] queueDepths;
+    private final long[] rejectedJobs;
+    private final TimeHistogram[] waitTimes;
+    private final TimeHistogram[] executionTimes;
+    private final long commandsSent;
+    private final double commandsPerSecond;
+    private final long modeSwitches;
+    private final long modeSwitchesSaved;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long reconnects;
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final long coalescedJobs;
+
+    TelnetSchedulerStats(TelnetScheduler scheduler, TelnetCounters counters, TelnetSchedulerStats previous) {
+        this.time = System.currentTimeMillis();
+
+        int priorities = Priority.values().length;
+        this.queueDepths = new int[priorities];
+        this.rejectedJobs = new long[priorities];
+        this.waitTimes = new TimeHistogram[priorities];
+        this.executionTimes = new TimeHistogram[priorities];
+        for (Priority priority : Priority.values()) {
+            int index = priority.ordinal();
+            this.queueDepths[index] = scheduler.getQueueSize(priority);
+            this.rejectedJobs[index] = scheduler.getRejectedJobCount(priority);
+            this.waitTimes[index] = new TimeHistogram(scheduler.getWaitTimeHistogram(priority));
+            this.executionTimes[index] = new TimeHistogram(scheduler.getExecutionTimeHistogram(priority));
+        }
+
+        this.commandsSent = counters.commandsSent.get();
+        this.modeSwitches = counters.modeSwitches.get();
+        this.modeSwitchesSaved = scheduler.getModeSwitchesSaved();
+        this.bytesRead = counters.bytesRead.get();
+        this.bytesWritten = counters.bytesWritten.get();
+        this.reconnects = counters.reconnects.get();
+        this.cacheHits = scheduler.getCacheHits();
+        this.cacheMisses = scheduler.getCacheMisses();
+        this.coalescedJobs = scheduler.getCoalescedJobCount();
+
+        if (previous != null && time > previous.time) {
+            this.commandsPerSecond = (commandsSent - previous.commandsSent) * 1000.0 / (time - previous.time);
+        } else {
+            this.commandsPerSecond = 0;
+        }
+    }
+
+    /**
+     * @return number of bytes read from the telnet server
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return number of bytes written to the telnet server
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of commands whose result was taken from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return number of cacheable commands that had to be sent
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * @return number of jobs attached to an equal job instead of being queued
+     */
+    public long getCoalescedJobs() {
+        return coalescedJobs;
+    }
+
+    /**
+     * @return commands sent per second since the previous snapshot
+     */
+    public double getCommandsPerSecond() {
+        return commandsPerSecond;
+    }
+
+    /**
+     * @return number of commands of jobs sent to the telnet server; mode
+     *         switches are not counted
+     */
+    public long getCommandsSent() {
+        return commandsSent;
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return histogram of the time from taking a job of the given priority
+     *         out of the queue until it was done, including the time to
+     *         connect
+     */
+    public TimeHistogram getExecutionTimeHistogram(Priority priority) {
+        return executionTimes[priority.ordinal()];
+    }
+
+    /**
+     * @return number of commands sent to switch the mode of a session
+     */
+    public long getModeSwitches() {
+        return modeSwitches;
+    }
+
+    /**
+     * @return number of jobs executed ahead of another job to save a mode
+     *         switch
+     */
+    public long getModeSwitchesSaved() {
+        return modeSwitchesSaved;
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return number of jobs of the given priority waiting in the queue
+     */
+    public int getQueueDepth(Priority priority) {
+        return queueDepths[priority.ordinal()];
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return number of jobs of the given priority aborted because the queue
+     *         was full
+     */
+    public long getRejectedJobs(Priority priority) {
+        return rejectedJobs[priority.ordinal()];
+    }
+
+    /**
+     * @return number of times a session was connected again after it was
+     *         closed
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return point in time in milliseconds this snapshot was taken
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @param priority the priority the jobs were queued with
+     * @return histogram of the time the jobs of the given priority waited in
+     *         the queue
+     */
+    public TimeHistogram getWaitTimeHistogram(Priority priority) {
+        return waitTimes[priority.ordinal()];
+    }
+}
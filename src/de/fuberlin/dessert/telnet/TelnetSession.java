@@ -0,0 +1,535 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The protocol state of a single session on the CLI telnet interface.
+ * <p>
+ * The session does no I/O on its own. It tells the engine of the
+ * {@link TelnetScheduler} which bytes to send next via
+ * {@link #nextRequest()} and gets fed with the bytes read from the connection
+ * via {@link #consume(ByteBuffer)}. This way the blocking and the selector
+ * based engine share the handling of the command modes, the pipelining and
+ * the callbacks of the {@link TelnetJob}.
+ * <p>
+ * The output of a {@link StreamingTelnetJob} is handed to the job line by line
+ * as it is parsed and is neither collected nor cached.
+ * <p>
+ * A session is not thread safe and must only be used by the thread driving
+ * the connection.
+ */
+final class TelnetSession {
+
+    static final String COMMAND_LOGOUT = "logout";
+    /** an empty command line; the server only answers with a new prompt */
+    static final String COMMAND_NOOP = "";
+
+    private static final String COMMAND_ENABLE = "enable";
+    private static final String COMMAND_CONFIG = "configure terminal";
+    private static final String COMMAND_DISABLE = "disable";
+    private static final String COMMAND_EXIT = "exit";
+
+    /** number of mode switches needed at most to get from any mode to another */
+    private static final int MAX_MODE_SWITCHES = 2;
+
+    private static final String[] STREAMED_RESULT = new String[0];
+
+    /** initial size of the buffer the requests are encoded into; it grows for longer requests */
+    private static final int SEND_BUFFER_SIZE = 512;
+
+    private final TelnetResponseParser responseParser = new TelnetResponseParser(new TelnetResponseParser.LineHandler() {
+        @Override
+        public boolean onLine(CharSequence line) {
+            TelnetCommand command = outstandingCommands.peek();
+            if (command == null || !isStreaming()) {
+                return false;
+            }
+
+            transcript.recordLine(command, line);
+            TelnetScheduler.signalJobLine((StreamingTelnetJob) job, line, command);
+            return true;
+        }
+    });
+    private final TelnetResultCache resultCache;
+    private final TelnetCounters counters;
+    private final TelnetTranscript transcript;
+    private final TelnetCapture capture;
+    private final int captureID;
+
+    /** commands whose prompt is still outstanding; null for the greeting and mode switches */
+    private final LinkedList<TelnetCommand> outstandingCommands = new LinkedList<TelnetCommand>();
+    private final List<TelnetCommand> batch = new ArrayList<TelnetCommand>(TelnetScheduler.MAX_PIPELINE_DEPTH);
+
+    /** reused for every request; a request is written completely before the next one is encoded */
+    private ByteBuffer sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+
+    private TelnetCommandMode currentMode = null;
+    private int generation = -1;
+
+    private TelnetJob job = null;
+    private TelnetScheduler.JobHandle jobHandle = null;
+    private TelnetCommand pendingCommand = null;
+    /** cached result of the pending command if it was already looked up while collecting a batch */
+    private String[] pendingResult = null;
+    private int modeSwitches = 0;
+    private int pipelineDepth = 1;
+    private int commandTimeout = 0;
+    private long commandDeadline = 0;
+    private long jobDeadline = 0;
+    private int requestCacheGeneration = 0;
+    private boolean wasOpened = false;
+
+    public TelnetSession(TelnetResultCache resultCache, TelnetCounters counters, TelnetTranscript transcript,
+            TelnetCapture capture) {
+        this.resultCache = resultCache;
+        this.counters = counters;
+        this.transcript = transcript;
+        this.capture = capture;
+        this.captureID = capture.nextSessionID();
+    }
+
+    /**
+     * Encodes the given <code>commands</code> as 7bit ASCII, each followed by
+     * a CR LF line ending.
+     * 
+     * @param commands the command lines to encode
+     * @return buffer ready to be written to the connection
+     */
+    static ByteBuffer encode(String... commands) {
+        int length = 0;
+        for (String command : commands) {
+            length += command.length() + 2;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (String command : commands) {
+            putLine(result, command);
+        }
+        result.flip();
+
+        return result;
+    }
+
+    /**
+     * Resets the session after the connection was closed. A running job is
+     * failed.
+     */
+    public void close() {
+        if (generation != -1) {
+            capture.recordClose(captureID);
+        }
+        failJob();
+        outstandingCommands.clear();
+        responseParser.reset();
+        currentMode = null;
+        generation = -1;
+        commandDeadline = 0;
+    }
+
+    /**
+     * Feeds the bytes read from the connection into the session. Every prompt
+     * found completes the oldest outstanding command and its result is
+     * signaled to the job.
+     * 
+     * @param input buffer with the bytes read; the buffer is consumed
+     *            completely
+     */
+    public void consume(ByteBuffer input) {
+        counters.bytesRead.addAndGet(input.remaining());
+        capture.recordReceived(captureID, input);
+        while (input.hasRemaining()) {
+            if (!responseParser.consume(input.get() & 0xFF)) {
+                continue;
+            }
+
+            // this is the prompt; now set the new mode
+            currentMode = responseParser.getPromptMode();
+            List<String> lines = responseParser.getLines();
+            responseParser.reset();
+
+            if (outstandingCommands.isEmpty()) {
+                continue;
+            }
+
+            TelnetCommand command = outstandingCommands.removeFirst();
+            commandDeadline = outstandingCommands.isEmpty() ? 0 : getCommandDeadline();
+            if (command == null) {
+                continue;
+            }
+
+            if (isStreaming()) {
+                // the lines were already handed to the job
+                TelnetScheduler.signalJobResult(job, STREAMED_RESULT, command);
+            } else {
+                String[] result = lines.toArray(new String[lines.size()]);
+                resultCache.put(command, result, requestCacheGeneration);
+                transcript.record(command, result, false);
+                if (job != null) {
+                    TelnetScheduler.signalJobResult(job, result, command);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the running job off the session without signaling anything to it.
+     * Used when the connection was lost and the scheduler decides on its own
+     * whether the job is replayed or failed.
+     * 
+     * @return the job that was running or <code>null</code>
+     */
+    public TelnetJob detachJob() {
+        TelnetJob detachedJob = job;
+        job = null;
+        jobHandle = null;
+        pendingCommand = null;
+        pendingResult = null;
+        jobDeadline = 0;
+        return detachedJob;
+    }
+
+    /**
+     * Fails the running job, if any, by calling its onError handler.
+     */
+    public void failJob() {
+        TelnetJob failedJob = detachJob();
+        if (failedJob != null) {
+            TelnetScheduler.signalJobError(failedJob);
+        }
+    }
+
+    /**
+     * @return the mode the session is currently in or <code>null</code> if
+     *         the session is not connected
+     */
+    public TelnetCommandMode getCurrentMode() {
+        return currentMode;
+    }
+
+    /**
+     * @return the point in time in milliseconds the outstanding prompt must be
+     *         read or 0 if there is no limit
+     */
+    public long getDeadline() {
+        if (commandDeadline == 0 || (jobDeadline != 0 && jobDeadline < commandDeadline)) {
+            return jobDeadline;
+        }
+        return commandDeadline;
+    }
+
+    /**
+     * @return the generation of the connection details this session was
+     *         opened for
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return <code>true</code> if there is a job running on this session
+     */
+    public boolean hasJob() {
+        return job != null;
+    }
+
+    /**
+     * @return <code>true</code> if the session waits for a prompt and bytes
+     *         must be read from the connection
+     */
+    public boolean isAwaitingPrompt() {
+        return !outstandingCommands.isEmpty();
+    }
+
+    /**
+     * Returns the bytes to send next for the running job. This is either a
+     * command to switch the mode of the session or the next command(s) of the
+     * job. Must only be called if the session is not awaiting a prompt.
+     * <p>
+     * Commands with a valid result in the cache are not sent; their result is
+     * signaled to the job right away. A cached command following the commands
+     * of a batch ends the batch, so the results are still signaled in order.
+     * <p>
+     * If the job has no more commands it is completed and <code>null</code>
+     * is returned. If the job was cancelled it is aborted and
+     * <code>null</code> is returned; the session stays usable for the next
+     * job.
+     * 
+     * @return buffer to be written to the connection or <code>null</code> if
+     *         the job is done
+     * @throws ProtocolException if the session did not reach the mode needed
+     *             by the next command
+     */
+    public ByteBuffer nextRequest() throws ProtocolException {
+        if (job == null) {
+            return null;
+        }
+
+        // the results of all commands sent were read, so the job can be stopped here
+        if (jobHandle.isStopping()) {
+            TelnetScheduler.signalJobAborted(detachJob());
+            return null;
+        }
+
+        TelnetCommand command = pendingCommand;
+        String[] cachedResult = pendingResult;
+        pendingCommand = null;
+        pendingResult = null;
+        if (command == null && job.hasMoreCommands()) {
+            command = job.nextCommand();
+        }
+
+        // serve cached results without a round trip; a command waiting for a mode switch was already looked up
+        while (command != null && modeSwitches == 0 && command.getTimeToLive() > 0) {
+            if (cachedResult == null) {
+                cachedResult = resultCache.get(command);
+                if (cachedResult == null) {
+                    break;
+                }
+            }
+
+            signalCachedResult(command, cachedResult);
+            cachedResult = null;
+            command = job.hasMoreCommands() ? job.nextCommand() : null;
+        }
+
+        if (command == null) {
+            TelnetScheduler.signalJobCompleted(detachJob());
+            return null;
+        }
+
+        // 1. enter the correct telnet mode
+        if (!command.isModeValid(currentMode)) {
+            if (modeSwitches >= MAX_MODE_SWITCHES) {
+                throw new ProtocolException("Still in wrong mode after switching modes");
+            }
+
+            pendingCommand = command;
+            modeSwitches++;
+            counters.modeSwitches.incrementAndGet();
+            String modeSwitchCommand = getModeSwitchCommand(command.getModes());
+            ByteBuffer request = prepareSendBuffer(modeSwitchCommand.length() + 2);
+            putLine(request, modeSwitchCommand);
+            request.flip();
+            return written(expect(null, request));
+        }
+        modeSwitches = 0;
+
+        // 2. collect any following command that can run in the same mode and is not served from the cache
+        batch.clear();
+        batch.add(command);
+        while (batch.size() < pipelineDepth && job.hasMoreCommands()) {
+            TelnetCommand nextCommand = job.nextCommand();
+            if (!nextCommand.isModeValid(currentMode)) {
+                pendingCommand = nextCommand;
+                break;
+            }
+            if (nextCommand.getTimeToLive() > 0) {
+                String[] nextResult = resultCache.get(nextCommand);
+                if (nextResult != null) {
+                    pendingCommand = nextCommand;
+                    pendingResult = nextResult;
+                    break;
+                }
+            }
+            batch.add(nextCommand);
+        }
+
+        // 3. any other command in config mode except for the no-op might change what the getters return
+        if (currentMode == TelnetCommandMode.CONFIG) {
+            for (TelnetCommand batchCommand : batch) {
+                if (batchCommand.getTimeToLive() <= 0 && !COMMAND_NOOP.equals(batchCommand.getCommand())) {
+                    resultCache.invalidate();
+                    // the result looked up above might be outdated once the batch was run
+                    pendingResult = null;
+                    break;
+                }
+            }
+        }
+        requestCacheGeneration = resultCache.getGeneration();
+
+        // 4. encode the command(s) into a single request; one prompt is expected per command
+        int length = 0;
+        for (TelnetCommand batchCommand : batch) {
+            length += batchCommand.getCommand().length() + 2;
+        }
+        ByteBuffer request = prepareSendBuffer(length);
+        for (TelnetCommand batchCommand : batch) {
+            putLine(request, batchCommand.getCommand());
+            outstandingCommands.add(batchCommand);
+        }
+        request.flip();
+        commandDeadline = getCommandDeadline();
+        counters.commandsSent.addAndGet(batch.size());
+
+        return written(request);
+    }
+
+    /**
+     * Prepares the session for a newly opened connection. The greeting prompt
+     * of the server is expected next.
+     * 
+     * @param connectionGeneration generation of the connection details used
+     *            to open the connection
+     * @param timeout time in milliseconds to wait for the greeting; 0 to wait
+     *            forever
+     */
+    public void open(int connectionGeneration, int timeout) {
+        close();
+        if (wasOpened) {
+            counters.reconnects.incrementAndGet();
+        }
+        wasOpened = true;
+        generation = connectionGeneration;
+        capture.recordOpen(captureID);
+        commandTimeout = timeout;
+        expect(null, null);
+    }
+
+    /**
+     * Starts the given <code>job</code> on this session and calls its onStart
+     * handler. The commands are retrieved by {@link #nextRequest()}. A job
+     * cancelled before it was started is aborted right away.
+     * 
+     * @param newJob the job to run
+     * @param handle the handle the job was enqueued with
+     * @param depth number of commands that may be sent at once
+     * @param timeout time in milliseconds to wait for the result of a single
+     *            command; 0 to wait forever
+     * @param jobTimeout time in milliseconds the whole job may take; 0 for no
+     *            limit
+     */
+    public void startJob(TelnetJob newJob, TelnetScheduler.JobHandle handle, int depth, int timeout, int jobTimeout) {
+        if (job != null) {
+            throw new IllegalStateException("There is already a job running on this session");
+        }
+
+        if (handle.isStopping()) {
+            TelnetScheduler.signalJobAborted(newJob);
+            return;
+        }
+
+        job = newJob;
+        jobHandle = handle;
+        pendingCommand = null;
+        pendingResult = null;
+        modeSwitches = 0;
+        pipelineDepth = Math.max(1, depth);
+        commandTimeout = timeout;
+        jobDeadline = jobTimeout > 0 ? System.currentTimeMillis() + jobTimeout : 0;
+        TelnetScheduler.signalJobStart(job);
+    }
+
+    private ByteBuffer expect(TelnetCommand command, ByteBuffer request) {
+        outstandingCommands.add(command);
+        commandDeadline = getCommandDeadline();
+        return request;
+    }
+
+    private boolean isStreaming() {
+        return job instanceof StreamingTelnetJob;
+    }
+
+    private long getCommandDeadline() {
+        return commandTimeout > 0 ? System.currentTimeMillis() + commandTimeout : 0;
+    }
+
+    /**
+     * Signals the <code>result</code> read from the cache for the given
+     * <code>command</code> to the running job.
+     */
+    private void signalCachedResult(TelnetCommand command, String[] result) {
+        transcript.record(command, result, true);
+        if (isStreaming()) {
+            for (String line : result) {
+                TelnetScheduler.signalJobLine((StreamingTelnetJob) job, line, command);
+            }
+            TelnetScheduler.signalJobResult(job, STREAMED_RESULT, command);
+        } else {
+            TelnetScheduler.signalJobResult(job, result, command);
+        }
+    }
+
+    /**
+     * @return the command that brings the session one step closer to one of
+     *         the given <code>modes</code>
+     */
+    private String getModeSwitchCommand(EnumSet<TelnetCommandMode> modes) {
+        switch (currentMode) {
+        case DEFAULT:
+            return COMMAND_ENABLE;
+        case PRIVILEGED:
+            return modes.contains(TelnetCommandMode.DEFAULT) ? COMMAND_DISABLE : COMMAND_CONFIG;
+        case CONFIG:
+            return COMMAND_EXIT;
+        default:
+            throw new IllegalArgumentException("Got unsupported telnet command mode " + currentMode);
+        }
+    }
+
+    /**
+     * @return the cleared send buffer with room for at least
+     *         <code>length</code> bytes
+     */
+    private ByteBuffer prepareSendBuffer(int length) {
+        if (sendBuffer.capacity() < length) {
+            int capacity = sendBuffer.capacity();
+            while (capacity < length) {
+                capacity *= 2;
+            }
+            sendBuffer = ByteBuffer.allocate(capacity);
+        }
+        sendBuffer.clear();
+        return sendBuffer;
+    }
+
+    private ByteBuffer written(ByteBuffer request) {
+        counters.bytesWritten.addAndGet(request.remaining());
+        capture.recordSent(captureID, request);
+        return request;
+    }
+
+    /**
+     * Puts the given command as 7bit ASCII followed by CR LF into the backing
+     * array of the heap <code>buffer</code>. Characters outside of ASCII are
+     * replaced by a question mark.
+     */
+    private static void putLine(ByteBuffer buffer, String command) {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        int length = command.length();
+        for (int i = 0; i < length; i++) {
+            char chr = command.charAt(i);
+            array[offset++] = chr < 0x80 ? (byte) chr : (byte) '?';
+        }
+        array[offset++] = 0x0D;
+        array[offset++] = 0x0A;
+        buffer.position(buffer.position() + length + 2);
+    }
+}
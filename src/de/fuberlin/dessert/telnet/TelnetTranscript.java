@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+
+/**
+ * A transcript of every command run on the CLI telnet interface and its
+ * result, shared by all sessions of a {@link TelnetScheduler}.
+ * <p>
+ * The sessions only put the results into a bounded queue, so they never wait
+ * for the disk. A writer thread encodes the queued results into a buffer and
+ * writes it to a {@link FileChannel} whenever the queue runs empty. If the
+ * queue is full the result is dropped. Once the file would grow beyond the
+ * maximum size it is renamed by appending {@value #ROLLED_SUFFIX} and a new
+ * file is started, so the transcript never takes more than twice the maximum
+ * size.
+ */
+final class TelnetTranscript {
+
+    /**
+     * A single recorded result.
+     */
+    private static final class Entry {
+        private final long time;
+        private final TelnetCommand command;
+        private final String[] lines;
+        private final boolean cached;
+        private final boolean streamed;
+
+        public Entry(TelnetCommand command, String[] lines, boolean cached, boolean streamed) {
+            this.time = System.currentTimeMillis();
+            this.command = command;
+            this.lines = lines;
+            this.cached = cached;
+            this.streamed = streamed;
+        }
+    }
+
+    /**
+     * Thread writing the queued entries to a single file. Stops when it takes
+     * the {@link TelnetTranscript#STOP} entry.
+     */
+    private final class WriterThread extends Thread {
+
+        private final File file;
+        private final long maxSize;
+        private final BlockingQueue<Entry> entries = new LinkedBlockingQueue<Entry>(QUEUE_CAPACITY);
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        private final Date date = new Date();
+        private FileChannel channel = null;
+        private long size = 0;
+        private TelnetCommand lastStreamedCommand = null;
+
+        public WriterThread(File file, long maxSize) {
+            super("TelnetScheduler-TranscriptThread");
+            this.file = file;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void run() {
+            try {
+                openFile();
+                while (true) {
+                    Entry entry = entries.take();
+                    if (entry == STOP) {
+                        break;
+                    }
+
+                    write(entry);
+                    if (entries.isEmpty()) {
+                        flush();
+                    }
+                }
+                flush();
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Transcript writer was interrupted");
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while writing transcript " + file, e);
+            } finally {
+                Utils.safelyClose(channel);
+                channel = null;
+            }
+        }
+
+        /**
+         * Writes the buffered bytes to the file. Starts a new file before if
+         * the current one would grow beyond the maximum size.
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            if (size > 0 && size + buffer.remaining() > maxSize) {
+                rollFile();
+            }
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void openFile() throws IOException {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            size = channel.size();
+            channel.position(size);
+        }
+
+        private void put(CharSequence text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                char chr = text.charAt(i);
+                buffer.put(chr < 0x80 ? (byte) chr : (byte) '?');
+            }
+        }
+
+        private void rollFile() throws IOException {
+            Utils.safelyClose(channel);
+            channel = null;
+
+            File rolledFile = new File(file.getPath() + ROLLED_SUFFIX);
+            if (rolledFile.exists() && !rolledFile.delete()) {
+                Log.w(LOG_TAG, "Could not delete old transcript " + rolledFile);
+            }
+            if (!file.renameTo(rolledFile)) {
+                Log.w(LOG_TAG, "Could not roll transcript " + file + "; starting over");
+                file.delete();
+            }
+            openFile();
+        }
+
+        private void write(Entry entry) throws IOException {
+            // the lines of a streamed command are written as they come; only the first one gets the header
+            if (!entry.streamed || entry.command != lastStreamedCommand) {
+                date.setTime(entry.time);
+                put(dateFormat.format(date));
+                put(entry.cached ? " (cached) > " : " > ");
+                put(entry.command.getCommand());
+                put(LINE_SEPARATOR);
+            }
+            lastStreamedCommand = entry.streamed ? entry.command : null;
+
+            for (String line : entry.lines) {
+                put(line);
+                put(LINE_SEPARATOR);
+            }
+        }
+    }
+
+    private static final String LOG_TAG = "DESSERT -> TelnetTranscript";
+
+    private static final String ROLLED_SUFFIX = ".1";
+    private static final String LINE_SEPARATOR = "\n";
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Entry STOP = new Entry(null, null, false, false);
+
+    private volatile WriterThread writer = null;
+    private final AtomicLong droppedEntries = new AtomicLong();
+
+    /**
+     * Stops recording. The results recorded so far are still written unless
+     * the queue is full.
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+
+        // the writer must get the stop entry even if the queue is full
+        WriterThread oldWriter = writer;
+        writer = null;
+        if (!oldWriter.entries.offer(STOP)) {
+            oldWriter.entries.clear();
+            oldWriter.entries.offer(STOP);
+        }
+
+        long dropped = droppedEntries.getAndSet(0);
+        if (dropped > 0) {
+            Log.w(LOG_TAG, "Dropped " + dropped + " results because the transcript could not keep up");
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the results are recorded
+     */
+    public boolean isOpen() {
+        return writer != null;
+    }
+
+    /**
+     * Starts recording to the given <code>file</code>. The results are
+     * appended if the file exists. A transcript that is already recording is
+     * closed before.
+     * 
+     * @param file file to write the transcript to
+     * @param maxSize size in bytes the file may grow to before it is rolled
+     */
+    public synchronized void open(File file, int maxSize) {
+        close();
+        writer = new WriterThread(file, Math.max(BUFFER_SIZE, maxSize));
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records the result of a command.
+     * 
+     * @param command the command run
+     * @param result the lines returned by the command
+     * @param cached <code>true</code> if the result was taken from the cache
+     */
+    public void record(TelnetCommand command, String[] result, boolean cached) {
+        WriterThread currentWriter = writer;
+        if (currentWriter != null) {
+            offer(currentWriter, new Entry(command, result, cached, false));
+        }
+    }
+
+    /**
+     * Records a single line of the output of a command run by a
+     * {@link StreamingTelnetJob}.
+     * 
+     * @param command the command run
+     * @param line the line of the output
+     */
+    public void recordLine(TelnetCommand command, CharSequence line) {
+        WriterThread currentWriter = writer;
+        if (currentWriter != null) {
+            offer(currentWriter, new Entry(command, new String[] { line.toString() }, false, true));
+        }
+    }
+
+    private void offer(WriterThread currentWriter, Entry entry) {
+        if (!currentWriter.entries.offer(entry)) {
+            droppedEntries.incrementAndGet();
+        }
+    }
+}
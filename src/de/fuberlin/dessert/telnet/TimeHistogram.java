@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations measured by the {@link TelnetScheduler}, e.g. the
+ * time jobs of a single {@link TelnetScheduler.Priority} waited in the queue
+ * or took to execute.
+ * <p>
+ * The buckets grow exponentially: bucket <code>i</code> counts the durations
+ * shorter than <code>2^i</code> milliseconds that did not fit into a smaller
+ * bucket. The last bucket counts any longer duration. Recording a duration
+ * costs a few atomic increments, so histograms can always be kept.
+ */
+public final class TimeHistogram {
+
+    /** number of buckets; the last but one ends at about 65 seconds */
+    public static final int BUCKET_COUNT = 18;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+
+    TimeHistogram() {
+        // nothing to do
+    }
+
+    /**
+     * Creates a copy of the given histogram. The copy is not exactly
+     * consistent if durations are recorded while copying.
+     * 
+     * @param source histogram to copy
+     */
+    TimeHistogram(TimeHistogram source) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, source.counts.get(i));
+        }
+        totalCount.set(source.totalCount.get());
+        maxTime.set(source.maxTime.get());
+    }
+
+    /**
+     * @param bucket index of the bucket
+     * @return upper bound of the bucket in milliseconds (exclusive) or
+     *         {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getUpperBound(int bucket) {
+        return bucket < BUCKET_COUNT - 1 ? 1L << bucket : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param bucket index of the bucket
+     * @return number of durations counted in the bucket
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @return longest duration in milliseconds recorded so far
+     */
+    public long getMaxTime() {
+        return maxTime.get();
+    }
+
+    /**
+     * Estimates the duration not exceeded by the given share of the recorded
+     * durations.
+     * 
+     * @param percentile share of the durations between 0 and 100
+     * @return upper bound of the bucket the percentile falls into, at most the
+     *         longest duration, in milliseconds; 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long needed = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += counts.get(i);
+            if (sum >= needed) {
+                return Math.min(getUpperBound(i), getMaxTime());
+            }
+        }
+        return getMaxTime();
+    }
+
+    /**
+     * @return number of durations recorded so far
+     */
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Records a single duration.
+     * 
+     * @param millis the duration in milliseconds
+     */
+    void record(long millis) {
+        long time = Math.max(0, millis);
+
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && time >= getUpperBound(bucket)) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        totalCount.incrementAndGet();
+
+        long max;
+        while (time > (max = maxTime.get()) && !maxTime.compareAndSet(max, time)) {
+            // retry until the maximum is updated or another thread recorded a longer duration
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet.jobs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.fuberlin.dessert.event.DataChangedEventListener;
+import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+import de.fuberlin.dessert.model.manage.PropertyFormat;
+import de.fuberlin.dessert.model.manage.PropertyValue;
+import de.fuberlin.dessert.telnet.CoalescableTelnetJob;
+import de.fuberlin.dessert.telnet.PeekableTelnetJob;
+import de.fuberlin.dessert.telnet.RetryableTelnetJob;
+import de.fuberlin.dessert.telnet.TelnetCommand;
+import de.fuberlin.dessert.telnet.TelnetCommandMode;
+
+/**
+ * Queries the values of several properties with a single job.
+ * <p>
+ * The getter commands are sorted by the mode they need, so the session
+ * switches modes as few times as possible. A getter command shared by several
+ * properties is sent only once. The change listener is notified once when the
+ * job is finished instead of once per property.
+ * <p>
+ * A batch enqueued while another batch with the same getter commands is still
+ * waiting is attached to that batch instead of being queued on its own.
+ */
+public class BatchPropertyTelnetJob implements CoalescableTelnetJob, PeekableTelnetJob, RetryableTelnetJob {
+
+    /**
+     * Orders the commands by the lowest mode they can be run in.
+     */
+    private static final Comparator<TelnetCommand> MODE_ORDER = new Comparator<TelnetCommand>() {
+        @Override
+        public int compare(TelnetCommand command1, TelnetCommand command2) {
+            return getLowestMode(command1).compareTo(getLowestMode(command2));
+        }
+    };
+
+    private final Map<TelnetCommand, List<ManageEntryProperty>> entries;
+    private final List<TelnetCommand> getterCommands;
+    private final Set<TelnetCommand> coalescingKey;
+    private final DataChangedEventListener changeListener;
+    private int nextIndex = 0;
+    private int resultCount = 0;
+
+    /**
+     * @param properties the properties to query
+     * @param changeListener listener to notify once all values are updated;
+     *            may be <code>null</code>
+     */
+    public BatchPropertyTelnetJob(List<ManageEntryProperty> properties, DataChangedEventListener changeListener) {
+        this.entries = new LinkedHashMap<TelnetCommand, List<ManageEntryProperty>>();
+        for (ManageEntryProperty entry : properties) {
+            TelnetCommand command = new TelnetCommand(entry.getGetterCommand().getCommandLine(), entry
+                    .getGetterCommand().getModes(), entry.getTimeToLive() * 1000L);
+            List<ManageEntryProperty> commandEntries = entries.get(command);
+            if (commandEntries == null) {
+                commandEntries = new ArrayList<ManageEntryProperty>(1);
+                entries.put(command, commandEntries);
+            }
+            commandEntries.add(entry);
+        }
+
+        this.getterCommands = new ArrayList<TelnetCommand>(entries.keySet());
+        Collections.sort(getterCommands, MODE_ORDER);
+        this.coalescingKey = new HashSet<TelnetCommand>(getterCommands);
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Batches with the same set of getter commands query the same values, even
+     * for different property objects.
+     */
+    @Override
+    public Object getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    @Override
+    public boolean hasMoreCommands() {
+        return nextIndex < getterCommands.size();
+    }
+
+    /**
+     * Only queries values, so the job can always be replayed.
+     */
+    @Override
+    public boolean isRetryable() {
+        return true;
+    }
+
+    @Override
+    public TelnetCommand nextCommand() {
+        return hasMoreCommands() ? getterCommands.get(nextIndex++) : null;
+    }
+
+    /**
+     * The job was cancelled or rejected by a full queue, so the last known
+     * values are kept.
+     */
+    @Override
+    public void onAborted() {
+        finish(null);
+    }
+
+    @Override
+    public void onCompleted() {
+        finish(null);
+    }
+
+    @Override
+    public void onError() {
+        finish(PropertyValue.ERROR);
+    }
+
+    @Override
+    public void onResult(String[] resultValue, TelnetCommand command) {
+        List<ManageEntryProperty> commandEntries = entries.get(command);
+        if (commandEntries == null) {
+            return;
+        }
+
+        // parse once per format, the properties sharing a getter usually share the format too
+        PropertyFormat format = null;
+        PropertyValue value = null;
+        for (ManageEntryProperty entry : commandEntries) {
+            if (format != entry.getFormat()) {
+                format = entry.getFormat();
+                value = format.parse(resultValue);
+            }
+            entry.setPropertyValue(value);
+            entry.setQuerying(false);
+        }
+        resultCount++;
+    }
+
+    @Override
+    public void onStart() {
+        // nothing to do
+    }
+
+    @Override
+    public TelnetCommand peekCommand() {
+        return hasMoreCommands() ? getterCommands.get(nextIndex) : null;
+    }
+
+    /**
+     * Sends the getters again whose result was not received yet. The results
+     * are received in the order the getters are sent.
+     */
+    @Override
+    public void rewind() {
+        nextIndex = resultCount;
+    }
+
+    /**
+     * Sets the value of every property still being queried and notifies the
+     * change listener.
+     * 
+     * @param missingValue the value to set; <code>null</code> to keep the last
+     *            known value
+     */
+    private void finish(PropertyValue missingValue) {
+        for (int i = resultCount; i < getterCommands.size(); i++) {
+            for (ManageEntryProperty entry : entries.get(getterCommands.get(i))) {
+                if (missingValue != null) {
+                    entry.setPropertyValue(missingValue);
+                }
+                entry.setQuerying(false);
+            }
+        }
+
+        if (changeListener != null) {
+            changeListener.onDataChanged();
+        }
+    }
+
+    private static TelnetCommandMode getLowestMode(TelnetCommand command) {
+        return command.getModes().iterator().next();
+    }
+}
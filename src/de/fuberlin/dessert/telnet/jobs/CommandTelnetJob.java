@@ -28,11 +28,12 @@ import java.util.LinkedList;
 import java.util.List;
 
 import de.fuberlin.dessert.event.CommandResultEventListener;
+import de.fuberlin.dessert.telnet.PeekableTelnetJob;
+import de.fuberlin.dessert.telnet.StreamingTelnetJob;
 import de.fuberlin.dessert.telnet.TelnetCommand;
 import de.fuberlin.dessert.telnet.TelnetCommandMode;
-import de.fuberlin.dessert.telnet.TelnetJob;
 
-public class CommandTelnetJob implements TelnetJob {
+public class CommandTelnetJob implements PeekableTelnetJob, StreamingTelnetJob {
 
     private final CommandResultEventListener resultListener;
     private final LinkedList<TelnetCommand> commands;
@@ -83,15 +84,24 @@ public class CommandTelnetJob implements TelnetJob {
         }
     }
 
+    @Override
+    public void onLine(CharSequence line, TelnetCommand command) {
+        // collect the lines right away instead of copying the whole output once it is read
+        results.add(line.toString());
+    }
+
     @Override
     public void onResult(String[] resultValues, TelnetCommand command) {
-        for (String string : resultValues) {
-            results.add(string);
-        }
+        // nothing to do; the lines are collected as they arrive
     }
 
     @Override
     public void onStart() {
         isStarted = true;
     }
+
+    @Override
+    public TelnetCommand peekCommand() {
+        return commands.peek();
+    }
 }
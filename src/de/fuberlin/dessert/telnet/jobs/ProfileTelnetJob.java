@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet.jobs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+import de.fuberlin.dessert.event.DataChangedEventListener;
+import de.fuberlin.dessert.model.manage.CommandLine;
+import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+import de.fuberlin.dessert.model.manage.PropertyValue;
+import de.fuberlin.dessert.telnet.OrderedTelnetJob;
+import de.fuberlin.dessert.telnet.PeekableTelnetJob;
+import de.fuberlin.dessert.telnet.TelnetCommand;
+import de.fuberlin.dessert.telnet.TelnetCommandMode;
+
+/**
+ * Applies a profile of new setter option values to several properties with a
+ * single job.
+ * <p>
+ * The setter commands of all properties are sent first, the properties sorted
+ * by the mode their setter commands need, so the session switches modes as
+ * few times as possible and the setters can be pipelined. Then the getter
+ * commands are sent to show the resulting values. The change listener is
+ * notified once when the job is finished.
+ * <p>
+ * The job is ordered with the jobs of every property it changes, so no other
+ * session reads a value while the profile is only partly applied.
+ */
+public class ProfileTelnetJob implements OrderedTelnetJob, PeekableTelnetJob {
+
+    private static final String LOG_TAG = "DESSERT -> ProfileTelnetJob";
+
+    /**
+     * Orders the properties by the lowest mode their first setter command, or
+     * their getter command if they have no setter, can be run in.
+     */
+    private static final Comparator<ManageEntryProperty> MODE_ORDER = new Comparator<ManageEntryProperty>() {
+        @Override
+        public int compare(ManageEntryProperty entry1, ManageEntryProperty entry2) {
+            return getLowestMode(entry1).compareTo(getLowestMode(entry2));
+        }
+    };
+
+    private final List<ManageEntryProperty> changedEntries;
+    private final List<TelnetCommand> commands = new ArrayList<TelnetCommand>();
+    /** property of every command; the getter commands follow the setter commands */
+    private final List<ManageEntryProperty> commandEntries = new ArrayList<ManageEntryProperty>();
+    private final int setterCount;
+    private final DataChangedEventListener changeListener;
+    private int nextIndex = 0;
+    private int resultCount = 0;
+    private int failureCount = 0;
+    private long startTime = 0;
+
+    /**
+     * @param changes the new values of the setter options by their upper case
+     *            names for every property to change
+     * @param changeListener listener to notify once all values are updated;
+     *            may be <code>null</code>
+     */
+    public ProfileTelnetJob(Map<ManageEntryProperty, Map<String, String>> changes,
+            DataChangedEventListener changeListener) {
+        List<ManageEntryProperty> entries = new ArrayList<ManageEntryProperty>(changes.keySet());
+        Collections.sort(entries, MODE_ORDER);
+        this.changedEntries = Collections.unmodifiableList(entries);
+
+        for (ManageEntryProperty entry : entries) {
+            Map<String, String> values = changes.get(entry);
+            for (CommandLine setter : entry.getSetterCommands()) {
+                commands.add(new TelnetCommand(Utils.replaceVariables(setter.getCommandLine(), values), setter
+                        .getModes()));
+                commandEntries.add(entry);
+            }
+        }
+        this.setterCount = commands.size();
+
+        for (ManageEntryProperty entry : entries) {
+            CommandLine getter = entry.getGetterCommand();
+            commands.add(new TelnetCommand(getter.getCommandLine(), getter.getModes(), entry.getTimeToLive() * 1000L));
+            commandEntries.add(entry);
+        }
+
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Jobs on any of the changed properties are kept in order with the
+     * profile.
+     */
+    @Override
+    public Object getOrderingKey() {
+        return changedEntries;
+    }
+
+    @Override
+    public boolean hasMoreCommands() {
+        return nextIndex < commands.size();
+    }
+
+    @Override
+    public TelnetCommand nextCommand() {
+        return hasMoreCommands() ? commands.get(nextIndex++) : null;
+    }
+
+    /**
+     * The job was cancelled or rejected by a full queue, so the last known
+     * values are kept.
+     */
+    @Override
+    public void onAborted() {
+        finish(null);
+    }
+
+    @Override
+    public void onCompleted() {
+        finish(null);
+    }
+
+    @Override
+    public void onError() {
+        finish(PropertyValue.ERROR);
+    }
+
+    @Override
+    public void onResult(String[] resultValues, TelnetCommand command) {
+        ManageEntryProperty entry = commandEntries.get(resultCount);
+        if (resultCount < setterCount) {
+            if (TransactionalPropertyTelnetJob.isFailure(resultValues)) {
+                Log.w(LOG_TAG, "Command rejected: " + command.getCommand());
+                failureCount++;
+            }
+        } else {
+            entry.setPropertyValue(entry.getFormat().parse(resultValues));
+            entry.setQuerying(false);
+        }
+        resultCount++;
+    }
+
+    @Override
+    public void onStart() {
+        startTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public TelnetCommand peekCommand() {
+        return hasMoreCommands() ? commands.get(nextIndex) : null;
+    }
+
+    /**
+     * Sets the value of every property still being queried and notifies the
+     * change listener.
+     * 
+     * @param missingValue the value to set; <code>null</code> to keep the last
+     *            known value
+     */
+    private void finish(PropertyValue missingValue) {
+        for (int i = Math.max(resultCount, setterCount); i < commands.size(); i++) {
+            if (missingValue != null) {
+                commandEntries.get(i).setPropertyValue(missingValue);
+            }
+            commandEntries.get(i).setQuerying(false);
+        }
+
+        if (startTime != 0) {
+            Log.i(LOG_TAG, "Applied " + setterCount + " setter commands with " + failureCount + " rejected in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+
+        if (changeListener != null) {
+            changeListener.onDataChanged();
+        }
+    }
+
+    private static TelnetCommandMode getLowestMode(ManageEntryProperty entry) {
+        CommandLine[] setters = entry.getSetterCommands();
+        CommandLine command = setters.length > 0 ? setters[0] : entry.getGetterCommand();
+        return command.getModes().iterator().next();
+    }
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet.jobs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.fuberlin.dessert.event.DataChangedEventListener;
+import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+import de.fuberlin.dessert.model.manage.PropertyValue;
+import de.fuberlin.dessert.telnet.TelnetScheduler;
+import de.fuberlin.dessert.telnet.TelnetScheduler.Priority;
+
+/**
+ * Polls the values of properties periodically by queueing
+ * {@link PropertyTelnetJob} objects with {@link Priority#LOW} priority.
+ * <p>
+ * Every property is polled with its own interval as declared in the manager
+ * file (see {@link ManageEntryProperty#getPollInterval()}). The interval is
+ * doubled up to {@value #MAX_BACKOFF_FACTOR} times its declared value while
+ * the value does not change or the queue of the scheduler is busy. As soon as
+ * the value changes the declared interval is used again.
+ * <p>
+ * The poller is created paused, so it has to be resumed once the values are
+ * visible and should be paused whenever they are not visible anymore.
+ */
+public class PropertyPoller {
+
+    /**
+     * A single polled property. Acts as the change listener of the jobs it
+     * queues to learn about the new value.
+     */
+    private final class PolledProperty implements Runnable, DataChangedEventListener {
+
+        private final ManageEntryProperty entry;
+        private final long baseInterval;
+        private long interval;
+        private PropertyValue lastValue;
+        private ScheduledFuture<?> future = null;
+        private boolean isQuerying = false;
+
+        public PolledProperty(ManageEntryProperty entry) {
+            this.entry = entry;
+            this.baseInterval = entry.getPollInterval() * 1000L;
+            this.interval = baseInterval;
+        }
+
+        @Override
+        public void onDataChanged() {
+            synchronized (PropertyPoller.this) {
+                isQuerying = false;
+
+                // back off while the value stays the same
+                PropertyValue value = entry.getPropertyValue();
+                if (value == null ? lastValue == null : value.equals(lastValue)) {
+                    backOff();
+                } else {
+                    interval = baseInterval;
+                }
+                lastValue = value;
+
+                schedule(interval);
+            }
+
+            if (changeListener != null) {
+                changeListener.onDataChanged();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (PropertyPoller.this) {
+                future = null;
+                if (isPaused || !properties.contains(this)) {
+                    return;
+                }
+
+                // skip this round if the last job is still queued or the queue is busy
+                if (isQuerying || scheduler.getQueueSize() >= BUSY_QUEUE_SIZE) {
+                    backOff();
+                    schedule(interval);
+                    return;
+                }
+                isQuerying = true;
+            }
+
+            PropertyTelnetJob job = new PropertyTelnetJob(entry, this, entry.getGetterCommand().getCommandLine(), entry
+                    .getGetterCommand().getModes());
+            scheduler.enqueueJob(job, Priority.LOW);
+        }
+
+        private void backOff() {
+            interval = Math.min(interval * 2, baseInterval * MAX_BACKOFF_FACTOR);
+        }
+
+        private void cancel() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        private void schedule(long delay) {
+            cancel();
+            if (!isPaused && properties.contains(this)) {
+                future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static final int MAX_BACKOFF_FACTOR = 8;
+    private static final int BUSY_QUEUE_SIZE = 8;
+
+    private final TelnetScheduler scheduler;
+    private final DataChangedEventListener changeListener;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<PolledProperty> properties = new ArrayList<PolledProperty>();
+    private boolean isPaused = true;
+
+    /**
+     * @param scheduler scheduler to queue the jobs with
+     * @param changeListener listener to notify whenever a polled value was
+     *            updated
+     */
+    public PropertyPoller(TelnetScheduler scheduler, DataChangedEventListener changeListener) {
+        this.scheduler = scheduler;
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Stops polling any property.
+     */
+    public synchronized void clear() {
+        for (PolledProperty property : properties) {
+            property.cancel();
+        }
+        properties.clear();
+    }
+
+    /**
+     * Pauses the polling until {@link #resume()} is called.
+     */
+    public synchronized void pause() {
+        isPaused = true;
+        for (PolledProperty property : properties) {
+            property.cancel();
+        }
+    }
+
+    /**
+     * Resumes the polling with the declared intervals of the properties.
+     */
+    public synchronized void resume() {
+        isPaused = false;
+        for (PolledProperty property : properties) {
+            property.interval = property.baseInterval;
+            property.schedule(property.interval);
+        }
+    }
+
+    /**
+     * Replaces the polled properties by the given <code>entries</code>.
+     * Entries without a poll interval are ignored.
+     * 
+     * @param entries the properties to poll
+     */
+    public synchronized void setProperties(List<ManageEntryProperty> entries) {
+        clear();
+        for (ManageEntryProperty entry : entries) {
+            if (entry.getPollInterval() > 0) {
+                PolledProperty property = new PolledProperty(entry);
+                properties.add(property);
+                property.schedule(property.interval);
+            }
+        }
+    }
+
+    /**
+     * Stops the polling for good and releases the polling thread.
+     */
+    public synchronized void shutdown() {
+        clear();
+        executor.shutdownNow();
+    }
+}
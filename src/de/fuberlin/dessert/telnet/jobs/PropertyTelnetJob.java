@@ -25,19 +25,24 @@ package de.fuberlin.dessert.telnet.jobs;
 import java.util.EnumSet;
 import java.util.LinkedList;
 
-import de.fuberlin.dessert.Utils;
 import de.fuberlin.dessert.event.DataChangedEventListener;
 import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+import de.fuberlin.dessert.model.manage.PropertyValue;
+import de.fuberlin.dessert.telnet.CoalescableTelnetJob;
+import de.fuberlin.dessert.telnet.OrderedTelnetJob;
+import de.fuberlin.dessert.telnet.PeekableTelnetJob;
+import de.fuberlin.dessert.telnet.RetryableTelnetJob;
 import de.fuberlin.dessert.telnet.TelnetCommand;
 import de.fuberlin.dessert.telnet.TelnetCommandMode;
-import de.fuberlin.dessert.telnet.TelnetJob;
 
-public class PropertyTelnetJob implements TelnetJob {
+public class PropertyTelnetJob implements CoalescableTelnetJob, OrderedTelnetJob, PeekableTelnetJob,
+        RetryableTelnetJob {
 
     private final ManageEntryProperty entry;
     private final DataChangedEventListener changeListener;
     private final LinkedList<TelnetCommand> setterCommands;
     private final TelnetCommand getterCommand;
+    private boolean hasSetterCommands;
     private boolean isGetterSent;
     private volatile boolean isStarted;
 
@@ -46,7 +51,7 @@ public class PropertyTelnetJob implements TelnetJob {
         this.entry = entry;
         this.changeListener = changeListener;
         this.setterCommands = new LinkedList<TelnetCommand>();
-        this.getterCommand = new TelnetCommand(commandString, modes);
+        this.getterCommand = new TelnetCommand(commandString, modes, entry.getTimeToLive() * 1000L);
     }
 
     public void addSetterCommand(String commandString, EnumSet<TelnetCommandMode> modes) {
@@ -54,6 +59,25 @@ public class PropertyTelnetJob implements TelnetJob {
             throw new IllegalStateException("Cannot add anymore setter commands after the processing is started");
         }
         setterCommands.offer(new TelnetCommand(commandString, modes));
+        hasSetterCommands = true;
+    }
+
+    /**
+     * Jobs that only query a value are merged if they use the same getter
+     * command, even for different properties.
+     */
+    @Override
+    public Object getCoalescingKey() {
+        return setterCommands.isEmpty() ? getterCommand : null;
+    }
+
+    /**
+     * Jobs on the same property are kept in order so that a getter never
+     * overtakes a setter queued earlier.
+     */
+    @Override
+    public Object getOrderingKey() {
+        return entry;
     }
 
     @Override
@@ -61,6 +85,15 @@ public class PropertyTelnetJob implements TelnetJob {
         return !setterCommands.isEmpty() || !isGetterSent;
     }
 
+    /**
+     * Only jobs that query a value are replayed; a setter might have been
+     * applied already.
+     */
+    @Override
+    public boolean isRetryable() {
+        return !hasSetterCommands;
+    }
+
     @Override
     public TelnetCommand nextCommand() {
         TelnetCommand result = setterCommands.poll();
@@ -71,9 +104,12 @@ public class PropertyTelnetJob implements TelnetJob {
         return result;
     }
 
+    /**
+     * The job was cancelled or rejected by a full queue before the getter was
+     * run, so the last known value is kept.
+     */
     @Override
     public void onAborted() {
-        entry.setPropertyValue(null);
         entry.setQuerying(false);
         if (changeListener != null) {
             changeListener.onDataChanged();
@@ -89,7 +125,7 @@ public class PropertyTelnetJob implements TelnetJob {
 
     @Override
     public void onError() {
-        entry.setPropertyValue("<error>");
+        entry.setPropertyValue(PropertyValue.ERROR);
         entry.setQuerying(false);
         if (changeListener != null) {
             changeListener.onDataChanged();
@@ -98,12 +134,12 @@ public class PropertyTelnetJob implements TelnetJob {
 
     @Override
     public void onResult(String[] resultValue, TelnetCommand command) {
-        // we are only interested in the result of the getter command
-        if (command != getterCommand) {
+        // we are only interested in the result of the getter command; it might be the one of a coalesced job
+        if (!getterCommand.equals(command)) {
             return;
         }
 
-        entry.setPropertyValue(Utils.toString(resultValue, true));
+        entry.setPropertyValue(entry.getFormat().parse(resultValue));
         entry.setQuerying(false);
     }
 
@@ -111,4 +147,18 @@ public class PropertyTelnetJob implements TelnetJob {
     public void onStart() {
         isStarted = true;
     }
+
+    @Override
+    public TelnetCommand peekCommand() {
+        TelnetCommand result = setterCommands.peek();
+        if (result == null && !isGetterSent) {
+            result = getterCommand;
+        }
+        return result;
+    }
+
+    @Override
+    public void rewind() {
+        isGetterSent = false;
+    }
 }
@@ -24,15 +24,15 @@ package de.fuberlin.dessert.telnet.jobs;
 
 import java.util.EnumSet;
 
+import de.fuberlin.dessert.telnet.PeekableTelnetJob;
 import de.fuberlin.dessert.telnet.TelnetCommand;
 import de.fuberlin.dessert.telnet.TelnetCommandMode;
-import de.fuberlin.dessert.telnet.TelnetJob;
 
 /**
  * A simple telnet job that executes a single command line. There is no
  * notification of completion or returned values.
  */
-public class SingleCommandTelnetJob implements TelnetJob {
+public class SingleCommandTelnetJob implements PeekableTelnetJob {
 
     private TelnetCommand command;
 
@@ -84,4 +84,9 @@ public class SingleCommandTelnetJob implements TelnetJob {
     public void onStart() {
         // ignore
     }
+
+    @Override
+    public TelnetCommand peekCommand() {
+        return command;
+    }
 }
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet.jobs;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+import de.fuberlin.dessert.Utils;
+import de.fuberlin.dessert.event.DataChangedEventListener;
+import de.fuberlin.dessert.event.PropertyTransactionEventListener;
+import de.fuberlin.dessert.model.manage.CommandLine;
+import de.fuberlin.dessert.model.manage.ManageEntryProperty;
+import de.fuberlin.dessert.model.manage.PropertyValue;
+import de.fuberlin.dessert.telnet.OrderedTelnetJob;
+import de.fuberlin.dessert.telnet.TelnetCommand;
+
+/**
+ * Applies all setter commands of a property as one transaction.
+ * <p>
+ * The job first queries the current value with the getter command and keeps
+ * it as the values of the setter options. Then it sends the setter commands.
+ * If the CLI rejects any of them, the setter commands are sent again with the
+ * previous values to restore them. Finally the getter command is sent once
+ * more to show the resulting value. All of this runs on one session without
+ * any other job in between.
+ * <p>
+ * The previous values can only be restored if they can be told from the
+ * output of the getter (see {@link ManageEntryProperty#getOptionValues(PropertyValue)}).
+ * Otherwise the setter commands are applied without a rollback.
+ * <p>
+ * The job decides on its next commands based on the results of the previous
+ * ones. So it reports no more commands while results it depends on are
+ * outstanding, which also keeps a pipelined scheduler from sending commands
+ * too early. The setter commands of one phase are still sent together.
+ */
+public class TransactionalPropertyTelnetJob implements OrderedTelnetJob {
+
+    private static enum Phase {
+        CAPTURE,
+        APPLY,
+        ROLLBACK,
+        VERIFY,
+        DONE
+    }
+
+    private static final String LOG_TAG = "DESSERT -> TransactionalPropertyTelnetJob";
+
+    /** output of the CLI when it rejected a command */
+    private static final Pattern FAILURE_PATTERN = Pattern.compile(
+            "^\\s*%|\\berror\\b|\\binvalid\\b|\\bunknown command\\b|\\bfailed\\b", Pattern.CASE_INSENSITIVE);
+
+    private final ManageEntryProperty entry;
+    private final Map<String, String> optionsMap;
+    private final DataChangedEventListener changeListener;
+    private final PropertyTransactionEventListener transactionListener;
+    private final TelnetCommand captureCommand;
+    private final TelnetCommand getterCommand;
+    private final LinkedList<TelnetCommand> commands = new LinkedList<TelnetCommand>();
+
+    private Phase phase = Phase.CAPTURE;
+    private int outstandingResults = 0;
+    private long phaseStart = 0;
+    private Map<String, String> previousOptionsMap = null;
+    private boolean isFailed = false;
+    private boolean isRolledBack = false;
+    private long applyTime = -1;
+    private long rollbackTime = -1;
+
+    /**
+     * @param entry the property to set
+     * @param optionsMap the new values of the setter options by their upper
+     *            case names
+     * @param changeListener listener to notify when the value changed; may be
+     *            <code>null</code>
+     * @param transactionListener listener to notify about the outcome; may be
+     *            <code>null</code>
+     */
+    public TransactionalPropertyTelnetJob(ManageEntryProperty entry, Map<String, String> optionsMap,
+            DataChangedEventListener changeListener, PropertyTransactionEventListener transactionListener) {
+        this.entry = entry;
+        this.optionsMap = new HashMap<String, String>(optionsMap);
+        this.changeListener = changeListener;
+        this.transactionListener = transactionListener;
+
+        // the previous value must not come from the cache
+        CommandLine getter = entry.getGetterCommand();
+        this.captureCommand = new TelnetCommand(getter.getCommandLine(), getter.getModes());
+        this.getterCommand = new TelnetCommand(getter.getCommandLine(), getter.getModes(),
+                entry.getTimeToLive() * 1000L);
+        this.commands.add(captureCommand);
+    }
+
+    /**
+     * Jobs on the same property are kept in order so that a getter never
+     * overtakes the transaction.
+     */
+    @Override
+    public Object getOrderingKey() {
+        return entry;
+    }
+
+    @Override
+    public boolean hasMoreCommands() {
+        return !commands.isEmpty();
+    }
+
+    @Override
+    public TelnetCommand nextCommand() {
+        TelnetCommand result = commands.poll();
+        if (result != null) {
+            if (outstandingResults == 0) {
+                phaseStart = System.currentTimeMillis();
+            }
+            outstandingResults++;
+        }
+        return result;
+    }
+
+    /**
+     * The job was cancelled or rejected by a full queue, so the last known
+     * value is kept.
+     */
+    @Override
+    public void onAborted() {
+        entry.setQuerying(false);
+        if (changeListener != null) {
+            changeListener.onDataChanged();
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        if (isFailed) {
+            Log.w(LOG_TAG, "Setting " + entry.getDescription() + " failed after " + applyTime + "ms, "
+                    + (isRolledBack ? "restored previous value in " + rollbackTime + "ms" : "not restored"));
+            if (transactionListener != null) {
+                transactionListener.onTransactionFailed(entry, isRolledBack, applyTime, rollbackTime);
+            }
+        } else {
+            Log.i(LOG_TAG, "Set " + entry.getDescription() + " in " + applyTime + "ms");
+            if (transactionListener != null) {
+                transactionListener.onTransactionApplied(entry, applyTime);
+            }
+        }
+
+        if (changeListener != null) {
+            changeListener.onDataChanged();
+        }
+    }
+
+    /**
+     * The connection broke, so the previous values cannot be restored
+     * anymore.
+     */
+    @Override
+    public void onError() {
+        Log.w(LOG_TAG, "Connection failed while setting " + entry.getDescription() + " in phase " + phase);
+        entry.setPropertyValue(PropertyValue.ERROR);
+        entry.setQuerying(false);
+        if (transactionListener != null) {
+            transactionListener.onTransactionFailed(entry, false, applyTime, -1);
+        }
+        if (changeListener != null) {
+            changeListener.onDataChanged();
+        }
+    }
+
+    @Override
+    public void onResult(String[] resultValues, TelnetCommand command) {
+        outstandingResults--;
+
+        switch (phase) {
+        case CAPTURE:
+            PropertyValue previousValue = entry.getFormat().parse(resultValues);
+            entry.setPropertyValue(previousValue);
+            previousOptionsMap = entry.getOptionValues(previousValue);
+            break;
+        case APPLY:
+            if (isFailure(resultValues)) {
+                Log.w(LOG_TAG, "Command rejected: " + command.getCommand());
+                isFailed = true;
+            }
+            break;
+        case ROLLBACK:
+            if (isFailure(resultValues)) {
+                Log.e(LOG_TAG, "Could not restore previous value: " + command.getCommand());
+                isRolledBack = false;
+            }
+            break;
+        case VERIFY:
+            entry.setPropertyValue(entry.getFormat().parse(resultValues));
+            entry.setQuerying(false);
+            break;
+        default:
+            break;
+        }
+
+        if (outstandingResults == 0 && commands.isEmpty()) {
+            nextPhase();
+        }
+    }
+
+    @Override
+    public void onStart() {
+        // nothing to do
+    }
+
+    private void addSetterCommands(Map<String, String> values) {
+        for (CommandLine setter : entry.getSetterCommands()) {
+            commands.add(new TelnetCommand(Utils.replaceVariables(setter.getCommandLine(), values), setter.getModes()));
+        }
+    }
+
+    private void nextPhase() {
+        long now = System.currentTimeMillis();
+        switch (phase) {
+        case CAPTURE:
+            if (previousOptionsMap == null) {
+                Log.w(LOG_TAG, "Cannot tell the previous value of " + entry.getDescription()
+                        + " from its getter, setting it without rollback");
+            }
+            phase = Phase.APPLY;
+            addSetterCommands(optionsMap);
+            break;
+        case APPLY:
+            applyTime = now - phaseStart;
+            if (isFailed && previousOptionsMap != null) {
+                phase = Phase.ROLLBACK;
+                isRolledBack = true;
+                addSetterCommands(previousOptionsMap);
+            } else {
+                phase = Phase.VERIFY;
+                commands.add(getterCommand);
+            }
+            break;
+        case ROLLBACK:
+            rollbackTime = now - phaseStart;
+            phase = Phase.VERIFY;
+            commands.add(getterCommand);
+            break;
+        default:
+            phase = Phase.DONE;
+            break;
+        }
+
+        // a property without setter commands has nothing to apply
+        if (commands.isEmpty() && phase != Phase.DONE) {
+            nextPhase();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the output shows that the CLI rejected the
+     *         command
+     */
+    static boolean isFailure(String[] resultValues) {
+        if (resultValues != null) {
+            for (String line : resultValues) {
+                if (line != null && FAILURE_PATTERN.matcher(line).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Microbenchmark of the latency of {@link TelnetScheduler#enqueueJob} while
+ * several threads enqueue at once. It runs on a plain JVM and needs no telnet
+ * server: the scheduler is never started, so the jobs only pile up in the
+ * queues.
+ * <p>
+ * Every round the producer threads enqueue their jobs round robin over all
+ * priorities while another thread disconnects the scheduler over and over.
+ * Each disconnect drains the queues and aborts the queued jobs, so the
+ * producers race with the teardown the way the UI thread does when the daemon
+ * is stopped. The time of every single call is measured and the percentiles
+ * over all producers are printed per round; the first rounds warm up the JIT.
+ * <p>
+ * Usage: <code>EnqueueBenchmark [threads] [jobs per thread] [rounds]</code>
+ */
+public final class EnqueueBenchmark {
+
+    /**
+     * Job without commands that only counts how often it was aborted.
+     */
+    private static final class NoopJob implements TelnetJob {
+        private final AtomicInteger abortCount;
+
+        public NoopJob(AtomicInteger abortCount) {
+            this.abortCount = abortCount;
+        }
+
+        @Override
+        public boolean hasMoreCommands() {
+            return false;
+        }
+
+        @Override
+        public TelnetCommand nextCommand() {
+            return null;
+        }
+
+        @Override
+        public void onAborted() {
+            abortCount.incrementAndGet();
+        }
+
+        @Override
+        public void onCompleted() {
+            // nothing to do
+        }
+
+        @Override
+        public void onError() {
+            // nothing to do
+        }
+
+        @Override
+        public void onResult(String[] resultValues, TelnetCommand command) {
+            // nothing to do
+        }
+
+        @Override
+        public void onStart() {
+            // nothing to do
+        }
+    }
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_JOBS = 100000;
+    private static final int DEFAULT_ROUNDS = 5;
+
+    private final TelnetScheduler scheduler = TelnetScheduler.createScheduler(TelnetScheduler.Engine.BLOCKING, 1);
+    private final int threadCount;
+    private final int jobCount;
+    private final AtomicInteger abortCount = new AtomicInteger();
+    private volatile boolean isRunning = false;
+
+    /**
+     * @param threads number of threads enqueueing at once
+     * @param jobs number of jobs each thread enqueues per round
+     */
+    public EnqueueBenchmark(int threads, int jobs) {
+        this.threadCount = Math.max(1, threads);
+        this.jobCount = Math.max(1, jobs);
+    }
+
+    /**
+     * Runs a single round and prints its results.
+     * 
+     * @param round number of the round to print
+     * @throws InterruptedException if interrupted while waiting for the
+     *             threads
+     */
+    public void runRound(int round) throws InterruptedException {
+        final long[][] latencies = new long[threadCount][jobCount];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long[] threadLatencies = latencies[i];
+            producers[i] = new Thread("Producer " + i) {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    produce(threadLatencies);
+                }
+            };
+            producers[i].start();
+        }
+
+        isRunning = true;
+        final AtomicInteger disconnectCount = new AtomicInteger();
+        Thread disconnector = new Thread("Disconnector") {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                while (isRunning) {
+                    scheduler.disconnect();
+                    disconnectCount.incrementAndGet();
+                    Thread.yield();
+                }
+            }
+        };
+        disconnector.start();
+
+        abortCount.set(0);
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long duration = System.nanoTime() - startTime;
+        isRunning = false;
+        disconnector.join();
+        scheduler.disconnect();
+
+        long[] all = new long[threadCount * jobCount];
+        for (int i = 0; i < threadCount; i++) {
+            System.arraycopy(latencies[i], 0, all, i * jobCount, jobCount);
+        }
+        Arrays.sort(all);
+
+        System.out.println("Round " + round + ": " + all.length + " jobs in " + duration / 1000000 + "ms, "
+                + disconnectCount.get() + " disconnects, " + abortCount.get() + " aborted; latency in us p50="
+                + getPercentile(all, 50) + " p99=" + getPercentile(all, 99) + " p99.9=" + getPercentile(all, 99.9)
+                + " max=" + all[all.length - 1] / 1000);
+    }
+
+    private void produce(long[] latencies) {
+        TelnetScheduler.Priority[] priorities = TelnetScheduler.Priority.values();
+        for (int i = 0; i < latencies.length; i++) {
+            TelnetJob job = new NoopJob(abortCount);
+            long before = System.nanoTime();
+            scheduler.enqueueJob(job, priorities[i % priorities.length]);
+            latencies[i] = System.nanoTime() - before;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int jobs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_JOBS;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ROUNDS;
+
+        EnqueueBenchmark benchmark = new EnqueueBenchmark(threads, jobs);
+        for (int round = 1; round <= rounds; round++) {
+            benchmark.runRound(round);
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the latency in microseconds not exceeded by the given share of
+     *         the sorted <code>latencies</code>
+     */
+    private static long getPercentile(long[] latencies, double percentile) {
+        int index = (int) Math.ceil(latencies.length * percentile / 100) - 1;
+        return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1000;
+    }
+}
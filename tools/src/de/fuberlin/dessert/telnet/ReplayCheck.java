@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regression check of the {@link TelnetScheduler} against a capture recorded
+ * with {@link TelnetScheduler#setCaptureFile(File, int)}. It runs on a plain
+ * JVM and needs no daemon binary.
+ * <p>
+ * The capture is served by a {@link ReplayServer}. Every recorded session is
+ * replayed on a new connection by a single job that sends the recorded
+ * command lines as they are. The commands are valid in any mode, so the
+ * scheduler sends no mode switches of its own. The result of every command
+ * must equal the output recorded for it, and the server must not see a
+ * command line that does not follow the recording. The check prints the
+ * differences and the time taken per session and exits with 1 if anything
+ * differs.
+ * <p>
+ * Usage: <code>ReplayCheck &lt;capture&gt; [speed] [engine] [pipelined]</code>
+ */
+public final class ReplayCheck {
+
+    /**
+     * Sends the command lines of a recorded session and compares the results
+     * with the recorded ones.
+     */
+    private static final class ReplayJob implements TelnetJob {
+        private final List<TelnetCommand> commands = new ArrayList<TelnetCommand>();
+        private final List<String[]> expectedResults = new ArrayList<String[]>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int nextIndex = 0;
+        private int resultCount = 0;
+        private int differenceCount = 0;
+        private boolean isFailed = false;
+
+        public ReplayJob(ReplayServer server, int session) {
+            List<String> requests = server.getRequests(session);
+            for (int i = 0; i < requests.size(); i++) {
+                String[] expectedResult = server.getRecordedResult(session, i);
+                if (expectedResult == null) {
+                    break; // recording stopped before the prompt; nothing to compare
+                }
+                commands.add(new TelnetCommand(requests.get(i), ANY_MODE));
+                expectedResults.add(expectedResult);
+            }
+        }
+
+        @Override
+        public boolean hasMoreCommands() {
+            return nextIndex < commands.size();
+        }
+
+        @Override
+        public TelnetCommand nextCommand() {
+            return hasMoreCommands() ? commands.get(nextIndex++) : null;
+        }
+
+        @Override
+        public void onAborted() {
+            isFailed = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+
+        @Override
+        public void onError() {
+            isFailed = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onResult(String[] resultValues, TelnetCommand command) {
+            String[] expectedResult = expectedResults.get(resultCount++);
+            if (!Arrays.equals(expectedResult, resultValues)) {
+                differenceCount++;
+                System.out.println("  '" + command.getCommand() + "' returned " + Arrays.toString(resultValues)
+                        + " instead of " + Arrays.toString(expectedResult));
+            }
+        }
+
+        @Override
+        public void onStart() {
+            // nothing to do
+        }
+    }
+
+    private static final EnumSet<TelnetCommandMode> ANY_MODE = EnumSet.allOf(TelnetCommandMode.class);
+    private static final long SESSION_TIMEOUT = 10 * 60 * 1000L;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayCheck <capture> [speed] [engine] [pipelined]");
+            System.exit(1);
+        }
+
+        float speed = args.length > 1 ? Float.parseFloat(args[1]) : 0;
+        TelnetScheduler.Engine engine = args.length > 2 ? TelnetScheduler.Engine.valueOf(args[2])
+                : TelnetScheduler.Engine.BLOCKING;
+        boolean pipelined = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        ReplayServer server = new ReplayServer(new File(args[0]), speed);
+        server.start(0);
+        TelnetScheduler scheduler = TelnetScheduler.createScheduler(engine, 1);
+        scheduler.setPipelined(pipelined);
+        scheduler.startScheduler();
+
+        boolean isPassed = true;
+        try {
+            for (int session = 0; session < server.getSessionCount(); session++) {
+                // new connection details let the session connect again, so the server replays the next session
+                scheduler.setConnectionDetails(server.getPort());
+                ReplayJob job = new ReplayJob(server, session);
+                long startTime = System.currentTimeMillis();
+                scheduler.enqueueJob(job);
+                if (!job.done.await(SESSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    job.isFailed = true;
+                }
+
+                System.out.println("Session " + (session + 1) + ": " + job.commands.size() + " commands, "
+                        + job.differenceCount + " differing" + (job.isFailed ? ", failed" : "") + " in "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+                isPassed &= !job.isFailed && job.differenceCount == 0;
+            }
+        } finally {
+            scheduler.resetScheduler();
+            server.close();
+        }
+
+        System.out.println(server.getMismatchCount() + " command lines did not follow the recording");
+        isPassed &= server.getMismatchCount() == 0;
+        System.exit(isPassed ? 0 : 1);
+    }
+}
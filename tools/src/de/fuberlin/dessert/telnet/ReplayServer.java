@@ -0,0 +1,498 @@
+/*******************************************************************************
+ * Copyright 2010, Freie Universitaet Berlin (FUB). All rights reserved.
+ * 
+ * These sources were developed at the Freie Universitaet Berlin, 
+ * Computer Systems and Telematics / Distributed, embedded Systems (DES) group 
+ * (http://cst.mi.fu-berlin.de, http://www.des-testbed.net)
+ * -------------------------------------------------------------------------------
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see http://www.gnu.org/licenses/ .
+ * --------------------------------------------------------------------------------
+ * For further information and questions please use the web site
+ *        http://www.des-testbed.net
+ ******************************************************************************/
+package de.fuberlin.dessert.telnet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the CLI telnet server of a daemon that replays a capture
+ * recorded with {@link TelnetScheduler#setCaptureFile(File, int)}. It runs on
+ * a plain JVM, so a {@link TelnetScheduler} can be load and regression tested
+ * end to end without the daemon binary.
+ * <p>
+ * Every connection replays one of the recorded sessions; the sessions are
+ * handed out in the order they were recorded and start over after the last
+ * one. The server sends the recorded greeting and answers every command line
+ * it reads with the bytes the daemon sent for it, split at the prompts. The
+ * output is sent in the recorded chunks and paced by the recorded delays
+ * divided by the speed factor; a speed of 0 sends everything right away.
+ * <p>
+ * A command line that is not the next one of the recorded session is answered
+ * with the output recorded for the same line in any session, or with a bare
+ * prompt if it was never recorded. Both cases are counted as mismatches (see
+ * {@link #getMismatchCount()}).
+ * <p>
+ * Usage: <code>ReplayServer &lt;capture&gt; [port] [speed]</code>
+ */
+public final class ReplayServer {
+
+    /**
+     * Part of the output that was read at once.
+     */
+    private static final class Chunk {
+        private final long delay;
+        private final int event;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        public Chunk(long delay, int event) {
+            this.delay = delay;
+            this.event = event;
+        }
+    }
+
+    /**
+     * A command line and the output up to and including the next prompt.
+     */
+    private static final class Exchange {
+        private final String request; // null for the greeting
+        private final long requestTime;
+        private final List<Chunk> chunks = new ArrayList<Chunk>();
+        private boolean isComplete = false;
+        private byte[] prompt = new byte[0];
+
+        public Exchange(String request, long requestTime) {
+            this.request = request;
+            this.requestTime = requestTime;
+        }
+    }
+
+    /**
+     * The exchanges of a single recorded session as they are parsed from the
+     * capture.
+     */
+    private static final class RecordedSession {
+        private final List<Exchange> exchanges = new ArrayList<Exchange>();
+        private final TelnetResponseParser parser = new TelnetResponseParser(null);
+        private final StringBuilder partialRequest = new StringBuilder();
+        private int receiving = 0;
+        private long lastChunkTime = 0;
+
+        public RecordedSession(long openTime) {
+            exchanges.add(new Exchange(null, openTime));
+        }
+
+        public void onReceived(long time, int event, byte[] data) {
+            for (byte b : data) {
+                Exchange exchange = exchanges.get(receiving);
+                if (exchange.isComplete && receiving + 1 < exchanges.size()) {
+                    exchange = exchanges.get(++receiving);
+                }
+
+                // a chunk waits for its request or the chunk before, whichever came later
+                Chunk chunk = exchange.chunks.isEmpty() ? null : exchange.chunks.get(exchange.chunks.size() - 1);
+                if (chunk == null || chunk.event != event) {
+                    chunk = new Chunk(Math.max(0, time - Math.max(exchange.requestTime, lastChunkTime)), event);
+                    exchange.chunks.add(chunk);
+                    lastChunkTime = time;
+                }
+                chunk.data.write(b);
+
+                if (parser.consume(b & 0xFF)) {
+                    parser.reset();
+                    exchange.isComplete = true;
+                }
+            }
+        }
+
+        public void onSent(long time, byte[] data) {
+            for (byte b : data) {
+                if (b == '\n') {
+                    exchanges.add(new Exchange(trimLine(partialRequest), time));
+                    partialRequest.setLength(0);
+                } else {
+                    partialRequest.append((char) (b & 0xFF));
+                }
+            }
+        }
+    }
+
+    private static final byte[] LINE_ENDING = { '\r', '\n' };
+
+    private final List<List<Exchange>> sessions = new ArrayList<List<Exchange>>();
+    private final Map<String, Exchange> exchangesByRequest = new HashMap<String, Exchange>();
+    private final float speed;
+    private final AtomicInteger nextSession = new AtomicInteger();
+    private final AtomicInteger mismatches = new AtomicInteger();
+    private final Set<Socket> openSockets = new HashSet<Socket>();
+    private ServerSocket serverSocket = null;
+
+    /**
+     * Loads the given capture.
+     * 
+     * @param captureFile the capture to replay
+     * @param speed factor to divide the recorded delays by; 0 to send the
+     *            output without any delay
+     * @throws IOException if the capture could not be read or is malformed
+     */
+    public ReplayServer(File captureFile, float speed) throws IOException {
+        this.speed = speed;
+        load(captureFile);
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    public void close() {
+        synchronized (openSockets) {
+            for (Socket socket : openSockets) {
+                closeQuietly(socket);
+            }
+            openSockets.clear();
+            if (serverSocket != null) {
+                closeQuietly(serverSocket);
+                serverSocket = null;
+            }
+        }
+    }
+
+    /**
+     * @return number of command lines that were not answered from the session
+     *         being replayed
+     */
+    public int getMismatchCount() {
+        return mismatches.get();
+    }
+
+    /**
+     * @return the port the server listens on or -1 if it is not started
+     */
+    public int getPort() {
+        synchronized (openSockets) {
+            return serverSocket == null ? -1 : serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return number of sessions in the capture
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Starts accepting connections on the given port.
+     * 
+     * @param port the port to listen on; 0 for any free port
+     * @throws IOException if the port could not be bound
+     */
+    public void start(int port) throws IOException {
+        final ServerSocket socket = new ServerSocket(port);
+        synchronized (openSockets) {
+            serverSocket = socket;
+        }
+
+        Thread acceptThread = new Thread("ReplayServer-AcceptThread") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket client = socket.accept();
+                        final List<Exchange> session = sessions.get(nextSession.getAndIncrement() % sessions.size());
+                        Thread sessionThread = new Thread("ReplayServer-SessionThread") {
+                            @Override
+                            public void run() {
+                                replay(client, session);
+                            }
+                        };
+                        sessionThread.setDaemon(true);
+                        sessionThread.start();
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed
+                }
+            }
+        };
+        acceptThread.start();
+    }
+
+    /**
+     * Parses the output recorded for a command line the way a
+     * {@link TelnetSession} does.
+     * 
+     * @param session index of the recorded session
+     * @param request index of the command line within the session
+     * @return the recorded output lines without the prompt or
+     *         <code>null</code> if the output was not recorded up to the
+     *         prompt
+     */
+    String[] getRecordedResult(int session, int request) {
+        Exchange exchange = sessions.get(session).get(request + 1);
+        if (!exchange.isComplete) {
+            return null;
+        }
+
+        TelnetResponseParser parser = new TelnetResponseParser(null);
+        for (Chunk chunk : exchange.chunks) {
+            for (byte b : chunk.data.toByteArray()) {
+                if (parser.consume(b & 0xFF)) {
+                    List<String> lines = parser.getLines();
+                    return lines.toArray(new String[lines.size()]);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param session index of the recorded session
+     * @return the command lines sent in the given session in the order they
+     *         were recorded
+     */
+    List<String> getRequests(int session) {
+        List<Exchange> exchanges = sessions.get(session);
+        List<String> result = new ArrayList<String>(exchanges.size() - 1);
+        for (Exchange exchange : exchanges.subList(1, exchanges.size())) {
+            result.add(exchange.request);
+        }
+        return result;
+    }
+
+    private void load(File captureFile) throws IOException {
+        Map<String, RecordedSession> recordedSessions = new LinkedHashMap<String, RecordedSession>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(captureFile), "ISO-8859-1"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split(" ", 4);
+                try {
+                    long time = Long.parseLong(fields[0]);
+                    String type = fields[2];
+                    RecordedSession session = recordedSessions.get(fields[1]);
+                    if (session == null || TelnetCapture.TYPE_OPEN.equals(type)) {
+                        // a session captured while it was connected has no greeting
+                        session = new RecordedSession(time);
+                        recordedSessions.put(fields[1], session);
+                        if (!TelnetCapture.TYPE_OPEN.equals(type)) {
+                            session.exchanges.get(0).isComplete = true;
+                        }
+                    }
+
+                    if (TelnetCapture.TYPE_SEND.equals(type)) {
+                        session.onSent(time, TelnetCapture.unescape(fields[3]));
+                    } else if (TelnetCapture.TYPE_RECEIVE.equals(type)) {
+                        session.onReceived(time, lineNumber, TelnetCapture.unescape(fields[3]));
+                    } else if (TelnetCapture.TYPE_CLOSE.equals(type)) {
+                        addSession(session);
+                        recordedSessions.remove(fields[1]);
+                    } else if (!TelnetCapture.TYPE_OPEN.equals(type)) {
+                        throw new IllegalArgumentException("Unknown event " + type);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed line " + lineNumber + " in " + captureFile + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+
+        // sessions still open when the capture was stopped
+        for (RecordedSession session : recordedSessions.values()) {
+            addSession(session);
+        }
+
+        if (sessions.isEmpty()) {
+            throw new IOException("No sessions in " + captureFile);
+        }
+    }
+
+    private void addSession(RecordedSession session) {
+        for (Exchange exchange : session.exchanges) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for (Chunk chunk : exchange.chunks) {
+                output.write(chunk.data.toByteArray(), 0, chunk.data.size());
+            }
+
+            // the prompt is the last line of the output
+            byte[] data = output.toByteArray();
+            int start = data.length;
+            while (start > 0 && data[start - 1] != '\n') {
+                start--;
+            }
+            exchange.prompt = new byte[data.length - start];
+            System.arraycopy(data, start, exchange.prompt, 0, exchange.prompt.length);
+
+            if (exchange.request != null && exchange.isComplete && !exchangesByRequest.containsKey(exchange.request)) {
+                exchangesByRequest.put(exchange.request, exchange);
+            }
+        }
+        sessions.add(session.exchanges);
+    }
+
+    private void replay(Socket client, List<Exchange> session) {
+        synchronized (openSockets) {
+            if (serverSocket == null) {
+                closeQuietly(client);
+                return;
+            }
+            openSockets.add(client);
+        }
+
+        try {
+            client.setTcpNoDelay(true); // the chunks must not be held back until the client acknowledges the last one
+            InputStream input = client.getInputStream();
+            OutputStream output = client.getOutputStream();
+
+            // greet with the recorded greeting or at least with the first recorded prompt
+            Exchange greeting = session.get(0);
+            byte[] prompt = greeting.prompt.length > 0 || session.size() < 2 ? greeting.prompt : session.get(1).prompt;
+            if (greeting.chunks.isEmpty()) {
+                output.write(prompt);
+                output.flush();
+            } else {
+                send(greeting, output);
+            }
+
+            int next = 1;
+            StringBuilder line = new StringBuilder();
+            while (readLine(input, line)) {
+                String request = trimLine(line);
+                if (TelnetSession.COMMAND_LOGOUT.equals(request)) {
+                    break; // the logout is written by the engines directly and never captured
+                }
+
+                Exchange exchange;
+                if (next < session.size() && request.equals(session.get(next).request)) {
+                    exchange = session.get(next++);
+                } else {
+                    mismatches.incrementAndGet();
+                    exchange = exchangesByRequest.get(request);
+                }
+
+                if (exchange == null) {
+                    output.write(LINE_ENDING);
+                    output.write(prompt);
+                    output.flush();
+                } else {
+                    send(exchange, output);
+                    if (exchange.prompt.length > 0) {
+                        prompt = exchange.prompt;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the client closed the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (openSockets) {
+                openSockets.remove(client);
+            }
+            closeQuietly(client);
+        }
+    }
+
+    private void send(Exchange exchange, OutputStream output) throws IOException, InterruptedException {
+        for (Chunk chunk : exchange.chunks) {
+            if (speed > 0 && chunk.delay > 0) {
+                Thread.sleep((long) (chunk.delay / speed));
+            }
+            chunk.data.writeTo(output);
+            output.flush();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayServer <capture> [port] [speed]");
+            System.exit(1);
+        }
+
+        ReplayServer server = new ReplayServer(new File(args[0]), args.length > 2 ? Float.parseFloat(args[2]) : 1);
+        server.start(args.length > 1 ? Integer.parseInt(args[1]) : 0);
+        System.out.println("Replaying " + server.getSessionCount() + " sessions of " + args[0] + " on port "
+                + server.getPort());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Reads a line sent by the client without its line ending.
+     * 
+     * @return <code>false</code> if the client closed the connection
+     */
+    private static boolean readLine(InputStream input, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b == '\n') {
+                return true;
+            }
+            line.append((char) b);
+        }
+        return false;
+    }
+
+    private static String trimLine(StringBuilder line) {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            length--;
+        }
+        return line.substring(0, length);
+    }
+}